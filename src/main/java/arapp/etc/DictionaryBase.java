@@ -2,6 +2,7 @@ package arapp.etc;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -11,9 +12,12 @@ import java.util.concurrent.Future;
 
 import arapp.AppScope;
 import arutils.async.AsyncEngine;
+import arutils.async.LongService;
+import arutils.async.LongServiceBackend;
 import arutils.async.Request;
 import arutils.async.Service;
 import arutils.async.ServiceBackend;
+import arutils.db.BatchInputIterator;
 import arutils.db.ConnectionWrap;
 import arutils.db.DB.Dialect;
 import arutils.db.StatementBlock;
@@ -27,9 +31,9 @@ public class DictionaryBase {
 	final String base;
 	final AsyncEngine asyncEngine=AsyncEngine.create();
 	final Service<DictionaryWord> lookupCreateByName;
-	final Service<DictionaryWord> lookupById;
+	final LongService<DictionaryWord> lookupById;
 	final Service<Boolean> checkByName;
-	final Service<Boolean> checkById;	
+	final LongService<Boolean> checkById;	
 	final String selectByNameSql;
 	final String selectSingleByNameSql;
 	final String selectByIdSql;
@@ -64,24 +68,31 @@ public class DictionaryBase {
 			public int getMaxWorkers() {return JsonUtils.getInteger(3, appScope.getMeta(),"etc","dictionary",base,"concurrency");}
 			public int getMaxQueuedRequests() {return JsonUtils.getInteger(10000, appScope.getMeta(),"etc","dictionary",base,"queueSize");}
 			public int getMaxBulkSize() {return JsonUtils.getInteger(256, appScope.getMeta(),"etc","dictionary",base,"bulkSize");}
+			public long getMaxLingerNanos() {return 1000L*JsonUtils.getLong(0L, appScope.getMeta(),"etc","dictionary",base,"lingerMicros");}
+			public int getBisectDepth() {return JsonUtils.getInteger(0, appScope.getMeta(),"etc","dictionary",base,"bisectDepth");}
+			public Object coalesceKey(Object[] args) {return args[0];}
 		});
-		lookupById=asyncEngine.register("lookupById", new ServiceBackend<DictionaryWord>() {	
-			public void process(List<Request<DictionaryWord>> bulk) throws Exception {lookupByIdBulk(bulk);}
+		lookupById=asyncEngine.register("lookupById", new LongServiceBackend<DictionaryWord>() {	
+			public void process(long[] keys, int count, Object[] results) throws Exception {lookupByIdBulk(keys, count, results);}
 			public int getMaxWorkers() {return JsonUtils.getInteger(3, appScope.getMeta(),"etc","dictionary",base,"concurrency");}
 			public int getMaxQueuedRequests() {return JsonUtils.getInteger(10000, appScope.getMeta(),"etc","dictionary",base,"queueSize");}
 			public int getMaxBulkSize() {return JsonUtils.getInteger(256, appScope.getMeta(),"etc","dictionary",base,"bulkSize");}
+			public long getMaxLingerNanos() {return 1000L*JsonUtils.getLong(0L, appScope.getMeta(),"etc","dictionary",base,"lingerMicros");}
 		});
 		checkByName=asyncEngine.register("checkByName", new ServiceBackend<Boolean>() {	
 			public void process(List<Request<Boolean>> bulk) throws Exception {checkByNameBulk(bulk);}
 			public int getMaxWorkers() {return JsonUtils.getInteger(3, appScope.getMeta(),"etc","dictionary",base,"concurrency");}
 			public int getMaxQueuedRequests() {return JsonUtils.getInteger(10000, appScope.getMeta(),"etc","dictionary",base,"queueSize");}
 			public int getMaxBulkSize() {return JsonUtils.getInteger(256, appScope.getMeta(),"etc","dictionary",base,"bulkSize");}
+			public long getMaxLingerNanos() {return 1000L*JsonUtils.getLong(0L, appScope.getMeta(),"etc","dictionary",base,"lingerMicros");}
+			public Object coalesceKey(Object[] args) {return args[0];}
 		});
-		checkById=asyncEngine.register("checkById", new ServiceBackend<Boolean>() {	
-			public void process(List<Request<Boolean>> bulk) throws Exception {checkByIdBulk(bulk);}
+		checkById=asyncEngine.register("checkById", new LongServiceBackend<Boolean>() {	
+			public void process(long[] keys, int count, Object[] results) throws Exception {checkByIdBulk(keys, count, results);}
 			public int getMaxWorkers() {return JsonUtils.getInteger(2, appScope.getMeta(),"etc","dictionary",base,"concurrency");}
 			public int getMaxQueuedRequests() {return JsonUtils.getInteger(10000, appScope.getMeta(),"etc","dictionary",base,"queueSize");}
 			public int getMaxBulkSize() {return JsonUtils.getInteger(256, appScope.getMeta(),"etc","dictionary",base,"bulkSize");}
+			public long getMaxLingerNanos() {return 1000L*JsonUtils.getLong(0L, appScope.getMeta(),"etc","dictionary",base,"lingerMicros");}
 		});
 		mysqlDialect=appScope.getFlexDB().getDialect()==Dialect.MYSQL || appScope.getFlexDB().getDialect()==Dialect.DRIZZLE_MYSQL || appScope.getFlexDB().getDialect()==Dialect.DRIZZLE;  
 		String straightJoin=mysqlDialect?"straight_join":"join";
@@ -220,31 +231,22 @@ public class DictionaryBase {
 		}
 	}
 
-	protected void checkByIdBulk(List<Request<Boolean>> bulk) throws SQLException, InterruptedException {
-		if (bulk.size()==1) {
-			Request<Boolean> r = bulk.get(0);
-			Long id=(Long)r.getArgs()[0];
-			String name=Utils.toString( appScope.getFlexDB().selectSingle(selectSingleByIdSql, true, id) );
-			r.setResult(name!=null);
+	protected void checkByIdBulk(long[] keys, int count, Object[] results) throws SQLException, InterruptedException {
+		if (count==1) {
+			String name=Utils.toString( appScope.getFlexDB().selectSingle(selectSingleByIdSql, true, keys[0]) );
+			results[0]=name!=null;
 			return;
 		}
-		final Map<Long,List<Request<Boolean>>> map=new HashMap<>();  
-		for (Request<Boolean> r : bulk) {
-			Long id=(Long)r.getArgs()[0];
-			List<Request<Boolean>> lst = map.get(id);
-			if (lst==null) {lst=new ArrayList<>(1);	map.put(id, lst);}
-			lst.add(r);
-		}
-		 
-		appScope.getFlexDB().commit(new StatementBlock<List<DictionaryWord> >() {
-			public List<DictionaryWord>  execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+		final long[] ids=distinct(keys, count);
+		final boolean[] found=new boolean[ids.length];
+		appScope.getFlexDB().commit(new StatementBlock<Void>() {
+			public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+				Arrays.fill(found, false);
 				if (mysqlDialect) cw.update("delete from common_tmp", true); // only for mysql
-				cw.batchInsertSingleColumn("insert into common_tmp (i1) values (?)", map.keySet());
+				insertIds(cw, ids);
 				for (Object[] row : cw.select(selectByIdSql,true)) {
-					Long origId=Utils.toLong(row[0]);
-					Long id=Utils.toLong(row[1]);				
-					List<Request<Boolean>> lst = map.remove(origId);
-					for (Request<Boolean> r : lst) r.setResult(id!=null);
+					int idx=Arrays.binarySearch(ids, Utils.toLong(row[0]));
+					if (idx>=0) found[idx]=row[1]!=null;
 				}
 				if (mysqlDialect) cw.update("delete from common_tmp", true); // only for mysql
 				return null;
@@ -253,19 +255,18 @@ public class DictionaryBase {
 				return super.onError(cw, willAttemptToRetry, ex, start, now);
 			}
 		});
+		for (int i=0;i<count;++i) results[i]=found[Arrays.binarySearch(ids, keys[i])];
 	}
 	
-	final void lookupByIdBulk(List<Request<DictionaryWord>> bulk) throws SQLException, InterruptedException {
-		if (bulk.size()==1) {
-			Request<DictionaryWord> r = bulk.get(0);
-			Long id=(Long)r.getArgs()[0];
+	final void lookupByIdBulk(long[] keys, int count, Object[] results) throws SQLException, InterruptedException {
+		if (count==1) {
+			long id=keys[0];
 			String name=Utils.toString( appScope.getFlexDB().selectSingle(selectSingleByIdSql, true, id) );
 			if (name==null) {
-				RuntimeException ex = new RuntimeException("id "+id+" does not exist in "+tableName);
-				r.errored(ex);
+				results[0]=new RuntimeException("id "+id+" does not exist in "+tableName);
 			} else {
 				DictionaryWord dw=new DictionaryWord(id,name);
-				r.setResult(dw);
+				results[0]=dw;
 				DummyFuture<DictionaryWord> f=new DummyFuture<DictionaryWord>(dw);
 				synchronized (lock) {
 					nameCache.put(name, f );
@@ -273,32 +274,16 @@ public class DictionaryBase {
 			}
 			return;
 		}
-		final Map<Long,List<Request<DictionaryWord>>> map=new HashMap<>();  
-		for (Request<DictionaryWord> r : bulk) {
-			Long id=(Long)r.getArgs()[0];
-			List<Request<DictionaryWord>> lst = map.get(id);
-			if (lst==null) {lst=new ArrayList<>(1);	map.put(id, lst);}
-			lst.add(r);
-		}
-		 
-		List<DictionaryWord> fresh=appScope.getFlexDB().commit(new StatementBlock<List<DictionaryWord> >() {
-			public List<DictionaryWord>  execute(ConnectionWrap cw) throws SQLException, InterruptedException {
-				List<DictionaryWord> fresh=new ArrayList<>(map.size());
+		final long[] ids=distinct(keys, count);
+		final DictionaryWord[] words=new DictionaryWord[ids.length];
+		appScope.getFlexDB().commit(new StatementBlock<Void>() {
+			public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+				Arrays.fill(words, null);
 				if (mysqlDialect) cw.update("delete from common_tmp", true); // only for mysql
-				cw.batchInsertSingleColumn("insert into common_tmp (i1) values (?)", map.keySet());
+				insertIds(cw, ids);
 				for (Object[] row : cw.select(selectByIdSql,true)) {
-					Long origId=Utils.toLong(row[0]);
-					Long id=Utils.toLong(row[1]);
-					String name=Utils.toString(row[2]);
-					List<Request<DictionaryWord>> lst = map.remove(origId);
-					if (id!=null) {
-						DictionaryWord dw=new DictionaryWord(id,name);
-						for (Request<DictionaryWord> r : lst) r.setResult(dw);
-						fresh.add(dw);
-					} else {
-						RuntimeException ex = new RuntimeException("id "+origId+" does not exist in "+tableName);
-						for (Request<DictionaryWord> r : lst) r.errored(ex);
-					}
+					int idx=Arrays.binarySearch(ids, Utils.toLong(row[0]));
+					if (idx>=0 && row[1]!=null) words[idx]=new DictionaryWord(ids[idx],Utils.toString(row[2]));
 				}
 				if (mysqlDialect) cw.update("delete from common_tmp", true); // only for mysql
 				return null;
@@ -307,14 +292,40 @@ public class DictionaryBase {
 				return super.onError(cw, willAttemptToRetry, ex, start, now);
 			}
 		});
+		for (int i=0;i<count;++i) {
+			DictionaryWord dw=words[Arrays.binarySearch(ids, keys[i])];
+			results[i]=dw!=null?dw:new RuntimeException("id "+keys[i]+" does not exist in "+tableName);
+		}
 		synchronized (lock) {
-			for (DictionaryWord dw : fresh) {
-				DummyFuture<DictionaryWord> f=new DummyFuture<DictionaryWord>(dw);
-				nameCache.put(dw.word, f );
+			for (DictionaryWord dw : words) {
+				if (dw!=null) nameCache.put(dw.word, new DummyFuture<DictionaryWord>(dw) );
 			}
 		}
 	}
 	
+	/**
+	 * @return sorted distinct keys[0..count), to be looked up with Arrays.binarySearch
+	 */
+	private static long[] distinct(long[] keys, int count) {
+		long[] ids=Arrays.copyOf(keys, count);
+		Arrays.sort(ids);
+		int n=0;
+		for (int i=0;i<count;++i) {
+			if (n==0 || ids[n-1]!=ids[i]) ids[n++]=ids[i];
+		}
+		return n==count?ids:Arrays.copyOf(ids, n);
+	}
+	private static void insertIds(ConnectionWrap cw, final long[] ids) throws SQLException, InterruptedException {
+		cw.batchInsert("insert into common_tmp (i1) values (?)", new BatchInputIterator() {
+			int pos=-1;
+			public boolean hasNext() {return pos+1<ids.length;}
+			public void next() {++pos;}
+			public Object get(int idx) {return ids[pos];}
+			public void reset() {pos=-1;}
+			public int getColumnCount() {return 1;}
+		});
+	}
+	
 	@SuppressWarnings("serial")
 	class IdCache extends LinkedHashMap<Long,Future<DictionaryWord>> {
 		protected boolean removeEldestEntry(final Map.Entry<Long,Future<DictionaryWord>> eldest) {return super.size() > cacheSize;}
@@ -347,7 +358,7 @@ public class DictionaryBase {
 			if (stored!=null) return stored;
 		}
 		try {
-			Future<DictionaryWord> ret = lookupById.call(asyncEngine, id);
+			Future<DictionaryWord> ret = lookupById.call(asyncEngine, id.longValue());
 			synchronized (lock) {
 				idCache.put(id, ret);
 			}
@@ -18,19 +18,58 @@
 
 package arutils.async;
 
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import arutils.async.impl.AsyncEngineImpl;
 
 public abstract class AsyncEngine implements Workload {
 
+	/**
+	 * Per engine execution options, see {@link AsyncEngine#create(Options)}
+	 */
+	public static class Options {
+		private boolean virtualWorkers;
+		private boolean virtualCallbacks;
+
+		/**
+		 * Run service workers on virtual threads (JDK 21+), one virtual thread per worker.
+		 * Lets I/O bound backends use getMaxWorkers() in thousands. Falls back to the shared platform pool on older JVMs. 
+		 */
+		public Options setVirtualWorkers(boolean virtualWorkers) {
+			this.virtualWorkers=virtualWorkers;
+			return this;
+		}
+		/**
+		 * Deliver {@link CompletionCallback} notifications on virtual threads, instead of the worker thread.
+		 * Results returned by call... methods are always completed on the worker. 
+		 */
+		public Options setVirtualCallbacks(boolean virtualCallbacks) {
+			this.virtualCallbacks=virtualCallbacks;
+			return this;
+		}
+		public boolean isVirtualWorkers() {
+			return virtualWorkers;
+		}
+		public boolean isVirtualCallbacks() {
+			return virtualCallbacks;
+		}
+	}
+
 	/**
 	 * Submits an asynchronous call to the engine, to be served by <code>serviceName</code> backend.
 	 * @param serviceName - backend name registered with {@link Workload#register(java.lang.String,ServiceBackend)} method.
 	 * @see engine.Workload#call... methods
 	 */
 	public abstract <T> Result<T> call(String serviceName, Object... args) throws InterruptedException;
+	/**
+	 * Same as {@link #call(String, Object...)}, the request is failed with {@link java.util.concurrent.TimeoutException} instead of being processed, once the deadline passes.
+	 * Cancelling the returned Result drops the request as well.
+	 */
+	public abstract <T> Result<T> call(Deadline deadline, String serviceName, Object... args) throws InterruptedException;
 	public abstract <T> void callWithCallback(String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
+	public abstract <T> void callWithCallback(Deadline deadline, String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
 	public abstract <T> Result<T> callNoLimit(String serviceName, Object... args) throws InterruptedException;
 	public abstract <T> void callWithCallbackNoLimit(String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
 
@@ -38,17 +77,49 @@ public abstract class AsyncEngine implements Workload {
 
 
 	public abstract Workload createWorkload();
+	public abstract Workload createWorkload(Priority priority);
 
 	public abstract <T> Service<T> getService(String serviceName);
 
 	public abstract <T> Service<T> register(String serviceName, ServiceBackend<T> backend);
 	public abstract <T> Service<T> registerIfAbsent(String serviceName, ServiceBackend<T> backend);
 	public abstract <T> Service<T> register(String serviceName, ServiceBackend<T> backend, Workload w);
+	/**
+	 * Registers a service taking unboxed long keys. Long services are not partitioned, a RING backend gets the LOCKING queue.
+	 */
+	public abstract <T> LongService<T> register(String serviceName, LongServiceBackend<T> backend);
+	/**
+	 * Starts a chain of services, which pass bulks of results from stage to stage, see {@link Pipeline}
+	 */
+	public abstract Pipeline.Builder pipeline();
+	
+	/**
+	 * @return metrics snapshot of every registered service, by service name
+	 */
+	public abstract Map<String,ServiceMetrics> getMetrics();
 	
 	/*public abstract List<Runnable> shutdownNow();
 	public abstract void shutdown();
 	*/
-	public static AsyncEngine create() {return new AsyncEngineImpl();}
-	public static ExecutorService getEngineExecutorService() {return AsyncEngineImpl.getExecutorService();}
+	/**
+	 * @return executor running the service workers of this engine
+	 */
+	public abstract ExecutorService getWorkerExecutorService();
+
+	/**
+	 * Calls the service once the delay elapses, as a call of the engine workload, counted from now on.
+	 * Pending calls wait on a hashed timer wheel of the engine, and fire up to a millisecond late, straight into the service queue.
+	 * Cancelling the Result before the call is due drops the call.
+	 */
+	public abstract <T> Result<T> callAfter(long delay, TimeUnit unit, String serviceName, Object... args);
+	/**
+	 * @param timeMillis - {@link System#currentTimeMillis()} based time of the call
+	 * @see #callAfter(long, TimeUnit, String, Object...)
+	 */
+	public abstract <T> Result<T> callAt(long timeMillis, String serviceName, Object... args);
+	
+	public static AsyncEngine create() {return new AsyncEngineImpl(new Options());}
+	public static AsyncEngine create(Options options) {return new AsyncEngineImpl(options==null?new Options():options);}
+	public static ExecutorService getEngineExecutorService() {return AsyncEngineImpl.getSharedExecutorService();}
 	
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async;
+
+import java.util.List;
+
+/**
+ * Callback taking the completions of a bulk in one call. When the backend reports results on the worker thread,
+ * while its process(...) call runs, the requests completed for the same workload are passed to {@link #completedAll(Workload, List)}
+ * once the call returns, and the workload is updated once per bulk. Results reported from other threads,
+ * or delivered through the virtual callbacks of the engine, go to {@link #completed(Workload, Object, Object[])} one by one.
+ * Errors are always reported one by one.
+ */
+public interface BulkCompletionCallback<T> extends CompletionCallback<T> {
+	/**
+	 * @param requests - completed requests, in the reporting order, with {@link Request#getResult()} set.
+	 * The list is only valid until the method returns.
+	 */
+	void completedAll(Workload workload, List<Request<T>> requests);
+}
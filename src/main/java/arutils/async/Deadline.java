@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time, past which the caller is no longer interested in the result of a call.
+ * Requests found expired by a worker are failed with {@link java.util.concurrent.TimeoutException}, and never reach the backend.
+ */
+public final class Deadline {
+	final private long nanoTime;
+
+	private Deadline(long nanoTime) {
+		this.nanoTime=nanoTime;
+	}
+
+	public static Deadline after(long duration, TimeUnit unit) {
+		return new Deadline(System.nanoTime()+unit.toNanos(duration));
+	}
+
+	/**
+	 * @param nanoTime - in terms of System.nanoTime()
+	 */
+	public static Deadline atNanoTime(long nanoTime) {
+		return new Deadline(nanoTime);
+	}
+
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	public boolean isExpired() {
+		return isExpired(System.nanoTime());
+	}
+
+	public boolean isExpired(long nowNanos) {
+		return nowNanos-nanoTime>=0;
+	}
+
+	public long timeRemaining(TimeUnit unit) {
+		return unit.convert(nanoTime-System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "Deadline in "+timeRemaining(TimeUnit.MILLISECONDS)+"ms";
+	}
+}
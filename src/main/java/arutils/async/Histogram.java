@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async;
+
+/**
+ * Read only view of recorded values distribution
+ */
+public interface Histogram {
+	long getCount();
+	long getMin();
+	long getMax();
+	double getMean();
+	/**
+	 * @param percentile - 0..100
+	 * @return the upper bound of the bucket holding the percentile, within ~12% of the recorded value
+	 */
+	long getValueAtPercentile(double percentile);
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Request of a {@link LongService} call, carries its key unboxed, with no args array
+ */
+public class LongRequest<T> extends Request<T> {
+	private final long key;
+
+	public LongRequest(Workload workload, CompletionCallback<T> callback, long key, Executor callbackExecutor) {
+		super(workload, callback, null, callbackExecutor, null);
+		this.key=key;
+	}
+
+	public final long getKey() {
+		return key;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async;
+
+/**
+ * Service keyed by a single long, registered with {@link AsyncEngine#register(String, LongServiceBackend)}.
+ * The long calls pass the key unboxed, with no args array; their callbacks get null args.
+ * The generic calls with a Number as the only argument are served as well.
+ */
+public interface LongService<T> extends Service<T> {
+	Result<T> call(Workload w, long key) throws InterruptedException;
+	void callWithCallback(Workload w, CompletionCallback<T> callback, long key) throws InterruptedException;
+}
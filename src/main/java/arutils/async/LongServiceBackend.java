@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async;
+
+import java.util.List;
+
+/**
+ * Backend of a {@link LongService}, takes the keys of a bulk as a long[] and fills in a result slot per key.
+ * The arrays are reused by the worker thread, from bulk to bulk.
+ */
+public abstract class LongServiceBackend<T> extends ServiceBackend<T> {
+
+	private static final class Scratch {
+		long[] keys=new long[0];
+		Object[] results=new Object[0];
+	}
+	private final ThreadLocal<Scratch> scratch=new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Processes a bulk of keys, a key may repeat within the bulk.
+	 * @param keys - keys[0..count) are the keys of the bulk
+	 * @param results - results[i] is to be set to the result of keys[i], or to a Throwable to fail that call alone.
+	 * A slot left null completes its call with null. Throwing fails the whole bulk.
+	 */
+	public abstract void process(long[] keys, int count, Object[] results) throws Exception;
+
+	/**
+	 * Calls {@link #process(long[], int, Object[])}, then reports the result slots to the requests.
+	 * Backends with per request handling may override it, reading the keys with {@link #key(Request)}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void process(List<Request<T>> bulk) throws Exception {
+		int n=bulk.size();
+		Scratch s=scratch.get();
+		if (s.keys.length<n) {
+			s.keys=new long[n];
+			s.results=new Object[n];
+		}
+		long[] keys=s.keys;
+		Object[] results=s.results;
+		for (int i=0;i<n;++i)
+			keys[i]=key(bulk.get(i));
+		try {
+			process(keys, n, results);
+			for (int i=0;i<n;++i) {
+				Object ret=results[i];
+				if (ret instanceof Throwable)
+					bulk.get(i).errored((Throwable)ret);
+				else
+					bulk.get(i).setResult((T)ret);
+			}
+		} finally {
+			for (int i=0;i<n;++i)
+				results[i]=null;
+		}
+	}
+
+	/**
+	 * @return key of a long call, or the Number argument of a generic one
+	 */
+	public static long key(Request<?> r) {
+		if (r instanceof LongRequest)
+			return ((LongRequest<?>)r).getKey();
+		return ((Number)r.getArgs()[0]).longValue();
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async;
+
+import java.util.List;
+
+/**
+ * Chain of services built by {@link AsyncEngine#pipeline()}. Every stage is a service registered with the engine, with its own
+ * workers, bulk size and queue limit. The result of a stage is the argument of the next one, or its arguments if the result is an Object[];
+ * the result of the last stage completes the call.
+ * <p>
+ * The results of a bulk are forwarded to the next stage as one bulk. When the next stage has nothing queued and a free worker,
+ * the forwarding worker processes the bulk itself, so a lightly loaded pipeline runs on a single thread.
+ * Otherwise the bulk is queued, and the forwarding worker waits while the next stage queue is full, pushing the backpressure upstream.
+ * Errors skip the remaining stages. Every stage counts as a call of the workload.
+ */
+public interface Pipeline<T> {
+	interface Builder {
+		/**
+		 * Appends a stage, registers <code>backend</code> as <code>serviceName</code>
+		 */
+		Builder stage(String serviceName, ServiceBackend<?> backend);
+		<T> Pipeline<T> build();
+	}
+
+	Result<T> call(Workload w, Object... args) throws InterruptedException;
+	void callWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException;
+	List<String> getStageNames();
+}
@@ -17,40 +17,156 @@
 
 package arutils.async;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Request<T> {
 
-	final private Workload workload;
-	final private CompletionCallback<T> callback;
-	final private Object[] args;
+	/**
+	 * Completions deferred on a worker thread, between {@link Request#beginBulk()} and {@link Request#endBulk(int)}
+	 */
+	private static final class Deferred {
+		final ArrayList<Request<?>> reqs=new ArrayList<>();
+		int depth;
+	}
+	private static final ThreadLocal<Deferred> deferred=new ThreadLocal<Deferred>() {
+		@Override
+		protected Deferred initialValue() {
+			return new Deferred();
+		}
+	};
+
+	// not final, pooled requests are re-initialized by reuse()
+	private Workload workload;
+	private CompletionCallback<T> callback;
+	private Object[] args;
+	final private Executor callbackExecutor;
+	private long submitNanos=System.nanoTime();
+	private Deadline deadline;
+	private Workload.Priority priority;
+	private volatile boolean cancelled;
 	private boolean reported;
+	private T result;
+	// counters of the service processing the request, see countInto()
+	private LongAdder completedCounter;
+	private LongAdder erroredCounter;
 
 	public Request(Workload workload, CompletionCallback<T> callback, Object[] args) {
+		this(workload, callback, args, null, null);
+	}
+	/**
+	 * @param callbackExecutor - if not null, the callback is notified on the executor, instead of the reporting thread
+	 * @param deadline - if not null, the request is failed instead of processed, once the deadline passes
+	 */
+	public Request(Workload workload, CompletionCallback<T> callback, Object[] args, Executor callbackExecutor, Deadline deadline) {
 		this.workload=workload;
 		this.callback=callback;
 		this.args=args;
+		this.callbackExecutor=callbackExecutor;
+		this.deadline=deadline;
+		Workload.Priority p=workload==null?null:workload.getPriority();
+		this.priority=p==null?Workload.Priority.NORMAL:p;
+	}
+
+	/**
+	 * Re-initializes a pooled request for its next call. The request must have been reported, and not be referenced by anyone.
+	 */
+	protected void reuse(Workload workload, CompletionCallback<T> callback, Object[] args, Deadline deadline) {
+		this.workload=workload;
+		this.callback=callback;
+		this.args=args;
+		this.deadline=deadline;
+		Workload.Priority p=workload==null?null:workload.getPriority();
+		this.priority=p==null?Workload.Priority.NORMAL:p;
+		if (cancelled)
+			cancelled=false;
+		this.reported=false;
+		this.result=null;
+		this.completedCounter=null;
+		this.erroredCounter=null;
+		this.submitNanos=System.nanoTime();
+	}
+
+	/**
+	 * @return Priority of the workload the request was submitted with
+	 */
+	public final Workload.Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Marks the request as no longer wanted. A queued request is dropped by the worker, instead of being passed to the backend.
+	 */
+	public final void cancel() {
+		cancelled=true;
 	}
 
-	public final void errored(Throwable e) {
+	public final boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the deadline, or null
+	 */
+	public final Deadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Makes the request count itself once it gets its result or error, before the callback is notified,
+	 * so the counters are up to date by the time the caller sees the call completed.
+	 */
+	public final void countInto(LongAdder completed, LongAdder errored) {
+		this.completedCounter=completed;
+		this.erroredCounter=errored;
+	}
+
+	/**
+	 * @return true, once the request got its result or error
+	 */
+	public final boolean isReported() {
+		return reported;
+	}
+
+	/**
+	 * @return the result, once the request completed, see {@link BulkCompletionCallback}
+	 */
+	public final T getResult() {
+		return result;
+	}
+
+	public final boolean isExpired(long nowNanos) {
+		return deadline!=null && deadline.isExpired(nowNanos);
+	}
+
+	public final void errored(final Throwable e) {
 		if (!reported) {
 			reported=true;
-			try {
-				callback.errored(workload, e, args );
-			} finally {
-				workload.callCompleted();
+			if (erroredCounter!=null)
+				erroredCounter.increment();
+			if (callbackExecutor==null) {
+				reportErrored(e);
+				return;
 			}
+			callbackExecutor.execute(new Runnable() {public void run() {reportErrored(e);}});
 		}		
 	}
 
 	public final void completed() {
-		if (!reported) {
-			reported=true;
-			try {
-				callback.completed(workload, null, args );
-			} finally {
-				workload.callCompleted();
-			}
-		}
+		setResult(null);
+	}
+
+	/**
+	 * @return System.nanoTime() of the request creation
+	 */
+	public final long getSubmitNanos() {
+		return submitNanos;
+	}
+
+	public final Workload getWorkload() {
+		return workload;
 	}
 
 	public final Object[] getArgs() {
@@ -62,14 +178,82 @@ public class Request<T> {
 	}
 
 
-	public final void setResult(T result) {
+	public final void setResult(final T result) {
 		if (!reported) {
 			reported=true;
-			try {
-				callback.completed(workload, result, args );
-			} finally {
-				workload.callCompleted();
+			this.result=result;
+			if (completedCounter!=null)
+				completedCounter.increment();
+			if (callbackExecutor==null) {
+				if (callback instanceof BulkCompletionCallback) {
+					Deferred d=deferred.get();
+					if (d.depth>0) {
+						d.reqs.add(this);
+						return;
+					}
+				}
+				reportCompleted(result);
+				return;
 			}
+			callbackExecutor.execute(new Runnable() {public void run() {reportCompleted(result);}});
+		}
+	}
+
+	/**
+	 * Starts deferring the completions reported on the calling thread to {@link BulkCompletionCallback}s.
+	 * Calls may nest, each {@link #endBulk(int)} reports the completions deferred since the matching begin.
+	 * @return mark to be passed to {@link #endBulk(int)}
+	 */
+	public static int beginBulk() {
+		Deferred d=deferred.get();
+		++d.depth;
+		return d.reqs.size();
+	}
+
+	/**
+	 * Reports the completions deferred since {@link #beginBulk()} returned <code>mark</code>, one callback call and
+	 * one workload update per run of requests sharing the callback and the workload.
+	 */
+	public static void endBulk(int mark) {
+		Deferred d=deferred.get();
+		--d.depth;
+		ArrayList<Request<?>> reqs=d.reqs;
+		int from=mark;
+		while (from<reqs.size()) {
+			Request<?> first=reqs.get(from);
+			int to=from+1;
+			while (to<reqs.size() && reqs.get(to).callback==first.callback && reqs.get(to).workload==first.workload)
+				++to;
+			try {
+				first.reportAll(reqs.subList(from, to));
+			} catch (Throwable tt) {}
+			from=to;
+		}
+		reqs.subList(mark, reqs.size()).clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void reportAll(List<? extends Request<?>> requests) {
+		try {
+			((BulkCompletionCallback<T>)callback).completedAll(workload, (List<Request<T>>)requests);
+		} finally {
+			workload.callsCompleted(requests.size());
+		}
+	}
+
+	private void reportErrored(Throwable e) {
+		try {
+			callback.errored(workload, e, args );
+		} finally {
+			workload.callCompleted();
+		}
+	}
+
+	private void reportCompleted(T result) {
+		try {
+			callback.completed(workload, result, args );
+		} finally {
+			workload.callCompleted();
 		}
 	}
 }
@@ -17,8 +17,13 @@
 
 package arutils.async;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 public interface Result<T> extends Future<T> {
 	Object[] getArgs();
+	/**
+	 * @return a future completed together with this result, to compose with, instead of blocking a thread on get()
+	 */
+	CompletableFuture<T> toCompletableFuture();
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async;
+
+/**
+ * Service of a {@link ServiceBackend.QueueType#RING} backend. The fixed arity calls below reuse the args array of the ring slot,
+ * so a fire-and-forget call allocates nothing. The args array is only valid until the callback returns.
+ */
+public interface RingService<T> extends Service<T> {
+	void publish(Workload w, CompletionCallback<T> callback, Object arg0) throws InterruptedException;
+	void publish(Workload w, CompletionCallback<T> callback, Object arg0, Object arg1) throws InterruptedException;
+}
@@ -17,13 +17,31 @@
 
 package arutils.async;
 
+import java.util.List;
+
 public interface Service<T> {
 	Result<T> call(Workload w, Object... args) throws InterruptedException;
+	/**
+	 * The request is failed with {@link java.util.concurrent.TimeoutException}, if still queued once the deadline passes.
+	 */
+	Result<T> call(Workload w, Deadline deadline, Object... args) throws InterruptedException;
 	Result<T> callNoLimit(Workload w, Object... args) throws InterruptedException;
 	
 	void callWithCallback(Workload w, CompletionCallback<T> callback,Object... args) throws InterruptedException;
+	void callWithCallback(Workload w, Deadline deadline, CompletionCallback<T> callback,Object... args) throws InterruptedException;
 	void callWithCallbackNoLimit(Workload w, CompletionCallback<T> callback,Object... args) throws InterruptedException;
 	
+	/**
+	 * Enqueues a call per element of <code>argsList</code>, with a single queue operation for every chunk of up to MAX_REQUESTS calls.
+	 * Waits while the queue is full.
+	 */
+	void callAll(Workload w, CompletionCallback<T> callback, Iterable<Object[]> argsList) throws InterruptedException;
+	/**
+	 * @see #callAll(Workload, CompletionCallback, Iterable)
+	 * @return a Result per element of <code>argsList</code>, in the same order
+	 */
+	List<Result<T>> callAll(Workload w, Iterable<Object[]> argsList) throws InterruptedException;
+	
 	void callWithCallback(CompletionCallback<T> callback,Object... args) throws InterruptedException;
 	void callWithCallbackNoLimit(CompletionCallback<T> callback,Object... args) throws InterruptedException;
 	Workload getTrackingWorkload();
@@ -31,4 +49,6 @@ public interface Service<T> {
 	boolean tryCallWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException;
 	boolean tryCallWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException;
 
+	ServiceMetrics getMetrics();
+
 }
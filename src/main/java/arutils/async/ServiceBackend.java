@@ -21,10 +21,105 @@ import java.util.List;
 
 public abstract class ServiceBackend<T> {
 
+	/**
+	 * Queue flavour used by a service to hand requests over to its workers.
+	 * LOCKING - a single lock guards the queue, producers and workers wait on conditions.
+	 * LOCK_FREE - producers never take a lock; idle workers and blocked producers are parked/unparked.
+	 * RING - Disruptor style: a pre-allocated ring of reusable requests, served by a single worker, see {@link RingService}.
+	 */
+	public static enum QueueType {
+		LOCKING, LOCK_FREE, RING
+	}
+
+	/**
+	 * How the RING worker waits for requests, and producers for room in the ring.
+	 * BUSY_SPIN - lowest latency, burns a core while idle. YIELD - spins giving way to other threads. PARK - sleeps, least CPU.
+	 */
+	public static enum WaitStrategy {
+		BUSY_SPIN, YIELD, PARK
+	}
+
 	public abstract void process(List<Request<T>> bulk) throws Exception;
 	public int getMaxBulkSize() {return 1;}
 	public long getWorkerReleaseTimeout() {return 0;}
 	public int getMaxWorkers() {return 1;}
+	/**
+	 * Adaptive mode: the worker limit is tuned at runtime from the latency of {@link #process(List)},
+	 * between {@link #getMinWorkers()} and {@link #getMaxWorkers()}. Grows while the latency holds, shrinks once it climbs.
+	 */
+	public boolean isAdaptiveWorkers() {return false;}
+	/**
+	 * Lower bound of the worker limit in the adaptive mode
+	 */
+	public int getMinWorkers() {return 1;}
 	public int getMaxQueuedRequests() {return 1;}
+	/**
+	 * Starvation protection of the priority lanes: a request of a lower lane, queued this long, is taken ahead of the higher lanes.
+	 * 0 - strict priority. Partitioned services have no priority lanes, see {@link #getPartitions()}.
+	 */
+	public long getPriorityAgingMillis() {return 1000;}
+	public QueueType getQueueType() {return QueueType.LOCKING;}
+	public WaitStrategy getWaitStrategy() {return WaitStrategy.PARK;}
+	/**
+	 * Load shedding, CoDel style: once requests keep waiting in the queue longer than this for {@link #getShedIntervalMillis()},
+	 * queued requests and new calls fail fast with {@link RequestRejectedException}, until the queue wait is back under the target.
+	 * Bounds the latency in a traffic spike, instead of letting the backlog grow. 0 - no shedding.
+	 */
+	public long getShedTargetMillis() {return 0;}
+	public long getShedIntervalMillis() {return 100;}
+	/**
+	 * Partial failures: once {@link #process(List)} throws, the bulk is split in halves and each one is retried, recursively,
+	 * up to this many times, so a poison request fails alone instead of failing the whole bulk. 0 - the whole bulk fails.
+	 */
+	public int getBisectDepth() {return 0;}
+	/**
+	 * Pause before the retries of a split bulk
+	 */
+	public long getBisectBackoffMillis() {return 0;}
+	/**
+	 * Linger: once a worker finds a request, it may wait up to this long for the bulk to fill, before calling {@link #process(List)}.
+	 * Trades bounded latency for fewer, larger bulks. 0 - no linger, process whatever is queued.
+	 * Ignored by {@link QueueType#RING} services, the ring worker never lingers.
+	 */
+	public long getMaxLingerNanos() {return 0;}
+	/**
+	 * A lingering worker stops waiting as soon as this many requests are queued. 0 - wait for a full {@link #getMaxBulkSize()} bulk.
+	 * Ignored by {@link QueueType#RING} services.
+	 */
+	public int getMinBulkSize() {return 0;}
+	/**
+	 * Partitioned service: requests are spread over this many sub-queues by {@link #getPartitionKey(Object[])}, each served by a single worker.
+	 * Requests with equal keys are processed in the submission order, while throughput scales with the number of partitions.
+	 * To keep that order, a partition queues all requests in a single lane: workload priorities and {@link #getPriorityAgingMillis()} do not apply.
+	 * {@link #getMaxWorkers()} is ignored, {@link #getMaxQueuedRequests()} applies per partition. 0 - not partitioned.
+	 */
+	public int getPartitions() {return 0;}
+	/**
+	 * @return the partition key of request arguments, the first argument by default. Requests with null key go to any partition.
+	 */
+	public Object getPartitionKey(Object[] args) {return args==null || args.length==0?null:args[0];}
+	/**
+	 * Single-flight: calls with equal, non null keys share one request while it is queued or in flight,
+	 * and the result is fanned out to every caller. Calls with a deadline are never coalesced. null - no coalescing (default).
+	 */
+	public Object coalesceKey(Object[] args) {return null;}
+	/**
+	 * Overflow to disk: once this many requests are queued, callNoLimit calls are appended to memory mapped segment files
+	 * in {@link #getSpillDirectory()} instead of the heap, and replayed into the queue as it drains below half of it.
+	 * Only args {@link arutils.util.EncodingType#encodeObject(arutils.util.ByteBufferHolder, Object, boolean)} supports are spilled,
+	 * other calls are queued as usual. Partitioned services do not spill. 0 - no spilling.
+	 */
+	public int getSpillThreshold() {return 0;}
+	/**
+	 * Directory of the spill segments, one per service. null - a temporary directory.
+	 * A service that is not durable spills to a temporary directory of its own, created in this one.
+	 */
+	public String getSpillDirectory() {return null;}
+	/**
+	 * Keeps the spilled calls across restarts of the process: the spilled calls not processed yet are replayed by the next run,
+	 * as calls of the tracking workload with no callback. A call processed just before a crash may be replayed as well.
+	 * Needs {@link #getSpillDirectory()}.
+	 */
+	public boolean isSpillDurable() {return false;}
 
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async;
+
+/**
+ * Point in time snapshot of a {@link Service} counters, gauges and histograms.
+ * Counters are cumulative since the service registration.
+ */
+public interface ServiceMetrics {
+	/**
+	 * @return Number of requests accepted by the service
+	 */
+	long getSubmitted();
+	/**
+	 * @return Number of processed requests that got a result. A request is counted once, in its final state, split retries included.
+	 */
+	long getCompleted();
+	/**
+	 * @return Number of processed requests that got an error. A request is counted once, in its final state, split retries included.
+	 */
+	long getErrored();
+	/**
+	 * @return Number of requests refused by tryCallWithCallback, because of a full queue
+	 */
+	long getRejected();
+	/**
+	 * @return Number of cancelled or expired requests, failed by a worker instead of being processed
+	 */
+	long getDropped();
+	/**
+	 * @return Number of calls served by joining an identical request queued or in flight, not counted as submitted
+	 */
+	long getCoalesced();
+	/**
+	 * @return Number of calls failed with {@link RequestRejectedException}, at submission or once taken off the queue
+	 */
+	long getShed();
+	/**
+	 * @return Number of retried halves of failed bulks, see {@link ServiceBackend#getBisectDepth()}
+	 */
+	long getSplitRetries();
+	/**
+	 * @return Number of calls spilled to disk, see {@link ServiceBackend#getSpillThreshold()}
+	 */
+	long getSpilled();
+	/**
+	 * @return Number of spilled calls not replayed into the queue yet
+	 */
+	long getSpillLength();
+	
+	int getQueueLength();
+	int getQueueLength(Workload.Priority priority);
+	int getNumOfWorkers();
+	/**
+	 * @return Current limit of workers, tuned at runtime in the adaptive mode, see {@link ServiceBackend#isAdaptiveWorkers()}
+	 */
+	int getWorkerLimit();
+	
+	/**
+	 * @return Time from the request submission to the moment a worker took it off the queue, nanoseconds
+	 */
+	Histogram getQueueWaitNanos();
+	/**
+	 * @return Queue wait of the requests of a priority lane, nanoseconds
+	 */
+	Histogram getQueueWaitNanos(Workload.Priority priority);
+	/**
+	 * @return Duration of {@link ServiceBackend#process(java.util.List)} calls, nanoseconds
+	 */
+	Histogram getProcessNanos();
+	/**
+	 * @return Size of the bulks passed to {@link ServiceBackend#process(java.util.List)}, a sample per call
+	 */
+	Histogram getBulkSize();
+}
@@ -17,11 +17,22 @@
 
 package arutils.async;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 public interface Workload {
+	/**
+	 * Lane of a service queue the workload calls go to. Workers fill bulks from the higher lanes first,
+	 * a lower lane request is served ahead of them once it waited {@link ServiceBackend#getPriorityAgingMillis()}.
+	 */
+	public static enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
 	public <T> Result<T> call(String serviceName, Object... args) throws InterruptedException;
+	public <T> Result<T> call(Deadline deadline, String serviceName, Object... args) throws InterruptedException;
 	public <T> void callWithCallback(String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
+	public <T> void callWithCallback(Deadline deadline, String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
 	public <T> Result<T> callNoLimit(String serviceName, Object... args) throws InterruptedException;
 	public <T> void callWithCallbackNoLimit(String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException;
 
@@ -49,9 +60,28 @@ public interface Workload {
 	 * @return Future<Long> of completed number of calls, once <code>last()</code> is called on the Workload
 	 */
 	Future<Long> completeLast();
+	/**
+	 * Non blocking flavour of {@link #completeLast()}
+	 * @return CompletableFuture of completed number of calls, once <code>last()</code> is called on the Workload
+	 */
+	CompletableFuture<Long> completeLastAsync();
+	/**
+	 * Runs <code>r</code> once <code>last()</code> is called and all submitted calls are completed. 
+	 * Runs on the thread completing the last call, or right away if the Workload is complete already.
+	 */
+	void onComplete(Runnable r);
 	
+	/**
+	 * @return Priority of the workload calls, NORMAL unless the workload was created with {@link AsyncEngine#createWorkload(Priority)}
+	 */
+	Priority getPriority();
+
 	void callSubmitted();
 	void callCompleted();
+	/**
+	 * Same as <code>n</code> calls of {@link #callCompleted()}, used to report a bulk at once
+	 */
+	void callsCompleted(int n);
 	
 
 	
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+/**
+ * Gradient concurrency limit, after TCP Vegas: as long as the backend latency stays near its no-load value,
+ * the limit grows by about its square root per window; once the latency rises, the limit shrinks in proportion.
+ * <p>
+ * Latency samples are averaged over a window of {@link #WINDOW} bulks. The no-load latency drops to any faster window at once,
+ * and creeps up as a slow moving average of the uncongested windows.
+ * The limit does not grow while less than half of it is in use, so an idle service does not drift to the max.
+ */
+final class AdaptiveLimiter {
+	final static int WINDOW=10;
+	// number of windows the no-load latency averages over
+	final static int LONG_WINDOW=100;
+	// latency increase tolerated before the limit shrinks
+	final static double TOLERANCE=1.5;
+	final static double SMOOTHING=0.2;
+	final private int minLimit;
+	final private int maxLimit;
+	private double limit;
+	private double noLoadNanos;
+	private long windowNanos;
+	private int windowSamples;
+	private int windowMaxInUse;
+
+	AdaptiveLimiter(int minLimit, int maxLimit) {
+		this.minLimit=Math.max(1, minLimit);
+		this.maxLimit=Math.max(this.minLimit, maxLimit);
+		this.limit=this.minLimit;
+	}
+
+	/**
+	 * @param processNanos - latency of a successful bulk
+	 * @param inUse - number of running workers
+	 * @return the new limit
+	 */
+	synchronized int onSample(long processNanos, int inUse) {
+		windowNanos+=processNanos;
+		windowMaxInUse=Math.max(windowMaxInUse, inUse);
+		if (++windowSamples<WINDOW)
+			return getLimit();
+		double rtt=(double)windowNanos/windowSamples;
+		int maxInUse=windowMaxInUse;
+		windowNanos=0;
+		windowSamples=0;
+		windowMaxInUse=0;
+		// follows a faster backend at once, e.g. warmed up caches. Congested windows would inflate the baseline,
+		// only the uncongested ones, or the ones at the min limit, move it up
+		if (noLoadNanos==0 || rtt<noLoadNanos || limit<=minLimit)
+			noLoadNanos=rtt;
+		else if (rtt<TOLERANCE*noLoadNanos)
+			noLoadNanos+=(rtt-noLoadNanos)/LONG_WINDOW;
+		double gradient=Math.max(0.5, Math.min(1.0, TOLERANCE*noLoadNanos/rtt));
+		double newLimit=limit*gradient+Math.sqrt(limit);
+		if (newLimit>limit) {
+			if (maxInUse<limit/2)
+				return getLimit();
+			limit=newLimit;
+		} else
+			limit=limit*(1-SMOOTHING)+newLimit*SMOOTHING;
+		limit=Math.max(minLimit, Math.min(maxLimit, limit));
+		return getLimit();
+	}
+
+	synchronized int getLimit() {
+		return (int)limit;
+	}
+
+}
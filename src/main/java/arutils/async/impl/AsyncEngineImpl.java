@@ -19,23 +19,37 @@ package arutils.async.impl;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import arutils.async.AsyncEngine;
 import arutils.async.CompletionCallback;
+import arutils.async.Deadline;
+import arutils.async.LongService;
+import arutils.async.LongServiceBackend;
+import arutils.async.Pipeline;
 import arutils.async.Result;
 import arutils.async.Service;
 import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.ServiceMetrics;
 import arutils.async.Workload;
+import arutils.util.Utils;
 
 public class AsyncEngineImpl extends AsyncEngine implements Workload {
-	volatile Map<String,ServiceImpl<? extends Object>> services=new HashMap<>();
+	volatile Map<String,Service<? extends Object>> services=new HashMap<>();
 	Lock bigLock=new ReentrantLock();
 	static AtomicInteger tn=new AtomicInteger();
 	static ExecutorService executorService=Executors.newCachedThreadPool(new ThreadFactory() {
@@ -48,6 +62,32 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 		});
 	
 	WorkloadImpl mainWorkload=new WorkloadImpl(this);
+	final static long TIMER_TICK_NANOS=TimeUnit.MILLISECONDS.toNanos(1);
+	final static int TIMER_WHEEL_SIZE=512;
+	private volatile HashedTimerWheel timerWheel;
+	// expired delayed calls, made by a single executor task
+	final private ConcurrentLinkedQueue<DelayedCall<?>> dueCalls=new ConcurrentLinkedQueue<>();
+	final private AtomicBoolean dueDispatching=new AtomicBoolean();
+	final private Runnable dueDispatcher=new Runnable() {public void run() {dispatchDue();}};
+	final private ExecutorService engineExecutorService;
+	final private Executor callbackExecutor;
+	
+	public AsyncEngineImpl(Options options) {
+		ExecutorService es=null;
+		if (options.isVirtualWorkers()) {
+			es=VirtualThreads.newExecutor();
+			if (es==null)
+				Utils.logerr("Virtual threads are not supported by this JVM, async engine workers run on platform threads");
+		}
+		engineExecutorService=es==null?executorService:es;
+		Executor ce=null;
+		if (options.isVirtualCallbacks()) {
+			ce=options.isVirtualWorkers() && es!=null?es:VirtualThreads.newExecutor();
+			if (ce==null)
+				Utils.logerr("Virtual threads are not supported by this JVM, async engine callbacks run on worker threads");
+		}
+		callbackExecutor=ce;
+	}
 	
 
 	@Override
@@ -56,12 +96,24 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 		return service.call(this, args);
 	}
 
+	@Override
+	public <T> Result<T> call(Deadline deadline, String serviceName, Object... args) throws InterruptedException {
+		Service<T> service=getService(serviceName);
+		return service.call(this, deadline, args);
+	}
+
 	@Override
 	public <T> void callWithCallback(String serviceName,CompletionCallback<T> callback, Object... args) throws InterruptedException {
 		Service<T> service=getService(serviceName);
 		service.callWithCallback(this, callback, args);
 	}
 
+	@Override
+	public <T> void callWithCallback(Deadline deadline, String serviceName,CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		Service<T> service=getService(serviceName);
+		service.callWithCallback(this, deadline, callback, args);
+	}
+
 	@Override
 	public <T> Result<T> callNoLimit(String serviceName, Object... args) throws InterruptedException {
 		Service<T> service=getService(serviceName);
@@ -75,6 +127,121 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 	}
 
 	
+	@Override
+	public <T> Result<T> callAfter(long delay, TimeUnit unit, String serviceName, Object... args) {
+		Service<T> service=getService(serviceName);
+		if (service==null)
+			throw new IllegalArgumentException("Service "+serviceName+" is not registered");
+		HashedTimerWheel tw=getTimerWheel();
+		DelayedCall<T> call=new DelayedCall<T>(System.nanoTime()+unit.toNanos(Math.max(0, delay)), this, tw, this, mainWorkload, service, args);
+		callSubmitted();
+		tw.schedule(call);
+		return call.result;
+	}
+
+	@Override
+	public <T> Result<T> callAt(long timeMillis, String serviceName, Object... args) {
+		return callAfter(timeMillis-System.currentTimeMillis(), TimeUnit.MILLISECONDS, serviceName, args);
+	}
+
+	private HashedTimerWheel getTimerWheel() {
+		HashedTimerWheel tw=timerWheel;
+		if (tw!=null)
+			return tw;
+		bigLock.lock();
+		try {
+			if (timerWheel==null)
+				timerWheel=new HashedTimerWheel("async-engine-timer-"+tn.incrementAndGet(), TIMER_TICK_NANOS, TIMER_WHEEL_SIZE);
+			return timerWheel;
+		} finally {
+			bigLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the due calls on the executor, one task at a time, so a slow service call never delays the ticker
+	 */
+	private void dispatchDue(DelayedCall<?> call) {
+		dueCalls.add(call);
+		if (!dueDispatching.compareAndSet(false, true))
+			return;
+		try {
+			engineExecutorService.execute(dueDispatcher);
+		} catch (RejectedExecutionException e) {
+			dispatchDue();
+		}
+	}
+
+	private void dispatchDue() {
+		do {
+			for (DelayedCall<?> call; (call=dueCalls.poll())!=null;)
+				call.run();
+			dueDispatching.set(false);
+			// a call queued after the poll, that saw the flag still set
+		} while (!dueCalls.isEmpty() && dueDispatching.compareAndSet(false, true));
+	}
+
+	/**
+	 * Expires on the ticker thread, the call is then made by {@link AsyncEngineImpl#dispatchDue(DelayedCall)}.
+	 * Cancelling the result of a pending call completes it right away, rather than at its due time.
+	 */
+	final static class DelayedCall<T> extends HashedTimerWheel.Timer {
+		final private AsyncEngineImpl engine;
+		final private HashedTimerWheel wheel;
+		final private Workload workload;
+		// counts the calls of the workload
+		final private WorkloadImpl counter;
+		final private Service<T> service;
+		final ResultImpl<T> result;
+		final private Object[] args;
+
+		DelayedCall(long dueNanos, AsyncEngineImpl engine, HashedTimerWheel wheel, Workload workload, WorkloadImpl counter, Service<T> service, Object[] args) {
+			super(dueNanos);
+			this.engine=engine;
+			this.wheel=wheel;
+			this.workload=workload;
+			this.counter=counter;
+			this.service=service;
+			this.args=args;
+			this.result=new ResultImpl<T>(args) {
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					if (!super.cancel(mayInterruptIfRunning))
+						return false;
+					if (DelayedCall.this.wheel.cancel(DelayedCall.this))
+						DelayedCall.this.counter.callCompleted();
+					return true;
+				}
+			};
+		}
+
+		@Override
+		void expire() {
+			engine.dispatchDue(this);
+		}
+
+		void run() {
+			// cancelled after it expired
+			if (result.isCancelled()) {
+				counter.callCompleted();
+				return;
+			}
+			try {
+				// the executor must not wait for room in the queue either
+				service.callWithCallbackNoLimit(workload, result, args);
+			} catch (Throwable e) {
+				try {
+					result.errored(workload, e, args);
+				} finally {
+					counter.callCompleted();
+				}
+				return;
+			}
+			// counted by the service call from now on
+			counter.callWithdrawn();
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see engine.AsyncEngine#createWorkload()
 	 */
@@ -82,6 +249,16 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 	public Workload createWorkload() {
 		return new WorkloadImpl(this);
 	}
+
+	@Override
+	public Workload createWorkload(Priority priority) {
+		return new WorkloadImpl(this, priority);
+	}
+
+	@Override
+	public Priority getPriority() {
+		return mainWorkload.getPriority();
+	}
 	
 	/* (non-Javadoc)
 	 * @see engine.AsyncEngine#getService(java.lang.String)
@@ -104,10 +281,10 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 	 */
 	@Override
 	public <T> Service<T> register(String serviceName, ServiceBackend<T> backend, Workload trackingWorkload) {
-		ServiceImpl<T> simpl=new ServiceImpl<T>(this, backend,trackingWorkload);
+		Service<T> simpl=newService(backend,trackingWorkload);
 		bigLock.lock();
 		try {
-			Map<String,ServiceImpl<? extends Object>> newservices=new HashMap<>(services);
+			Map<String,Service<? extends Object>> newservices=new HashMap<>(services);
 			newservices.put(serviceName, simpl);
 			services=newservices;
 			return simpl;
@@ -115,16 +292,39 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 			bigLock.unlock();	
 		}
 	}
+	@Override
+	public <T> LongService<T> register(String serviceName, LongServiceBackend<T> backend) {
+		LongServiceImpl<T> simpl=new LongServiceImpl<T>(this, backend, this);
+		bigLock.lock();
+		try {
+			Map<String,Service<? extends Object>> newservices=new HashMap<>(services);
+			newservices.put(serviceName, simpl);
+			services=newservices;
+			return simpl;
+		} finally {
+			bigLock.unlock();	
+		}
+	}
+
+	private <T> Service<T> newService(ServiceBackend<T> backend, Workload trackingWorkload) {
+		if (backend.getQueueType()==QueueType.RING)
+			return new RingServiceImpl<T>(this, backend, trackingWorkload);
+		int partitions=backend.getPartitions();
+		if (partitions>0)
+			return new PartitionedServiceImpl<T>(this, backend, trackingWorkload, partitions);
+		return new ServiceImpl<T>(this, backend, trackingWorkload);
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> Service<T> registerIfAbsent(String serviceName, ServiceBackend<T> backend) {
-		ServiceImpl<T> simpl=new ServiceImpl<>(this, backend, this);
+		Service<T> simpl=newService(backend, this);
 		bigLock.lock();
 		try {
-			ServiceImpl<T> si = (ServiceImpl<T>) services.get(serviceName);
+			Service<T> si = (Service<T>) services.get(serviceName);
 			if (si!=null)
 				return si;
-			Map<String,ServiceImpl<? extends Object>> newservices=new HashMap<>(services);
+			Map<String,Service<? extends Object>> newservices=new HashMap<>(services);
 			newservices.put(serviceName, simpl);
 			services=newservices;
 			return simpl;
@@ -133,20 +333,67 @@ public class AsyncEngineImpl extends AsyncEngine implements Workload {
 		}
 	}
 
+	@Override
+	public Pipeline.Builder pipeline() {
+		return new PipelineImpl.BuilderImpl(this);
+	}
+
+	@Override
+	public Map<String,ServiceMetrics> getMetrics() {
+		Map<String,ServiceMetrics> ret=new TreeMap<>();
+		for (Map.Entry<String,Service<? extends Object>> e : services.entrySet())
+			ret.put(e.getKey(), e.getValue().getMetrics());
+		return ret;
+	}
+
+	public static ExecutorService getSharedExecutorService() {
+		return executorService;
+	}
+	/**
+	 * @deprecated use {@link AsyncEngine#getEngineExecutorService()}, or {@link #getWorkerExecutorService()} for the workers of this engine
+	 */
+	@Deprecated
 	public static ExecutorService getExecutorService() {
 		return executorService;
 	}
+	
+	@Override
+	public ExecutorService getWorkerExecutorService() {
+		return engineExecutorService;
+	}
+	
+	/**
+	 * @return executor to deliver CompletionCallback notifications, null to deliver on the worker thread
+	 */
+	Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
 
 	@Override
 	public void callCompleted() {
 		mainWorkload.callCompleted();
 	}
+
+	@Override
+	public void callsCompleted(int n) {
+		mainWorkload.callsCompleted(n);
+	}
 	
 	@Override
 	public Future<Long> completeLast() {
 		return mainWorkload.completeLast(); 
 	}
 
+	@Override
+	public CompletableFuture<Long> completeLastAsync() {
+		return mainWorkload.completeLastAsync(); 
+	}
+
+	@Override
+	public void onComplete(Runnable r) {
+		mainWorkload.onComplete(r); 
+	}
+
 	@Override
 	public void callSubmitted() {
 		mainWorkload.callSubmitted(); 
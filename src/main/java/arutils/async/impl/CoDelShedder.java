@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+/**
+ * CoDel (controlled delay) for a service queue: a backlog is fine, as long as requests still get through it within the target.
+ * Once the minimum queue sojourn time of the taken bulks stays above the target for a whole interval, the service starts dropping:
+ * the bulks taken are failed instead of processed, and new calls are rejected while the queue is not empty.
+ * Dropping stops as soon as a bulk is taken within the target again.
+ */
+final class CoDelShedder {
+	final long targetNanos;
+	final long intervalNanos;
+	// end of the interval the sojourn time went above the target, 0 - below the target
+	private long firstAboveNanos;
+	private volatile boolean dropping;
+
+	CoDelShedder(long targetNanos, long intervalNanos) {
+		this.targetNanos=targetNanos;
+		this.intervalNanos=intervalNanos;
+	}
+
+	/**
+	 * @param minSojournNanos - queue wait of the most recent request of a taken bulk
+	 * @return true, if the bulk is to be dropped
+	 */
+	synchronized boolean onTake(long minSojournNanos, long nowNanos) {
+		if (minSojournNanos<targetNanos) {
+			firstAboveNanos=0;
+			dropping=false;
+			return false;
+		}
+		if (firstAboveNanos==0) {
+			// 0 is reserved
+			firstAboveNanos=(nowNanos+intervalNanos)|1;
+			return dropping;
+		}
+		if (nowNanos-firstAboveNanos>=0)
+			dropping=true;
+		return dropping;
+	}
+
+	boolean isDropping() {
+		return dropping;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Workload;
+
+/**
+ * Callback of a request, which other identical calls may join while it is queued or in flight.
+ * Joining and closing both run inside the in-flight map's compute for the key, so a follower either
+ * gets the result of this call, or does not find it in the map.
+ */
+final class CoalescedCall<T> implements CompletionCallback<T> {
+	final private ConcurrentHashMap<Object,CoalescedCall<T>> inFlight;
+	final private Object key;
+	final private CompletionCallback<T> callback;
+	// guarded by the inFlight map bin of the key
+	private List<Request<T>> followers;
+
+	CoalescedCall(ConcurrentHashMap<Object,CoalescedCall<T>> inFlight, Object key, CompletionCallback<T> callback) {
+		this.inFlight=inFlight;
+		this.key=key;
+		this.callback=callback;
+	}
+
+	void addFollower(Request<T> follower) {
+		if (followers==null)
+			followers=new ArrayList<>(2);
+		followers.add(follower);
+	}
+
+	private List<Request<T>> close() {
+		final List<List<Request<T>>> ret=new ArrayList<>(1);
+		inFlight.computeIfPresent(key, (k,c) -> {
+			if (c!=this)
+				return c;
+			if (followers!=null)
+				ret.add(followers);
+			return null;
+		});
+		return ret.isEmpty()?null:ret.get(0);
+	}
+
+	@Override
+	public void completed(Workload workload, T ret, Object[] args) {
+		List<Request<T>> lst=close();
+		try {
+			callback.completed(workload, ret, args);
+		} finally {
+			if (lst!=null) {
+				for (Request<T> r : lst) {try {r.setResult(ret);} catch (Throwable tt) {}}
+			}
+		}
+	}
+
+	@Override
+	public void errored(Workload workload, Throwable e, Object[] args) {
+		List<Request<T>> lst=close();
+		try {
+			callback.errored(workload, e, args);
+		} finally {
+			if (lst!=null) {
+				for (Request<T> r : lst) {try {r.errored(e);} catch (Throwable tt) {}}
+			}
+		}
+	}
+}
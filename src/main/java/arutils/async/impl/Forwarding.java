@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import arutils.async.Request;
+
+/**
+ * Requests a pipeline stage worker collects for the next stage, while its bulk is being processed.
+ * Bound to the worker thread, nested when the next stage runs on the same thread.
+ */
+final class Forwarding<T> {
+	private static final ThreadLocal<Forwarding<?>> CURRENT=new ThreadLocal<>();
+
+	final ServiceImpl<T> target;
+	private final Forwarding<?> outer;
+	private final List<Request<T>> reqs=new ArrayList<>();
+
+	private Forwarding(ServiceImpl<T> target, Forwarding<?> outer) {
+		this.target=target;
+		this.outer=outer;
+	}
+
+	static <T> Forwarding<T> begin(ServiceImpl<T> target) {
+		Forwarding<T> f=new Forwarding<>(target, CURRENT.get());
+		CURRENT.set(f);
+		return f;
+	}
+
+	/**
+	 * @return forwarding to <code>target</code> in progress on the calling thread, or null
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Forwarding<T> current(ServiceImpl<T> target) {
+		Forwarding<?> f=CURRENT.get();
+		return (f!=null && f.target==target)?(Forwarding<T>)f:null;
+	}
+
+	void add(Request<T> req) {
+		reqs.add(req);
+	}
+
+	void end() {
+		CURRENT.set(outer);
+	}
+
+	/**
+	 * Hands the collected requests over to the target, after {@link #end()}
+	 */
+	void flush() {
+		if (!reqs.isEmpty())
+			target.forward(reqs);
+	}
+}
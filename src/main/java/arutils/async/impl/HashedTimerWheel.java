@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel: a timer is hashed into a bucket by its due tick, with the number of full wheel rounds to wait.
+ * Scheduling is an append to a non-blocking queue; a single ticker thread moves the new timers into the buckets,
+ * and expires one bucket per tick. Millions of pending timers cost a node each, and no per-timer work until due.
+ * Timers fire up to a tick late, on the ticker thread, so their work has to be short.
+ * A cancelled timer is unlinked from its bucket by the ticker on its next tick, rather than at its due time.
+ * The ticker sleeps while no timer is pending.
+ */
+final class HashedTimerWheel {
+	final private long tickNanos;
+	final private Timer[] wheel;
+	final private int mask;
+	final private String threadName;
+	final private ConcurrentLinkedQueue<Timer> added=new ConcurrentLinkedQueue<>();
+	final private ConcurrentLinkedQueue<Timer> cancelled=new ConcurrentLinkedQueue<>();
+	final private AtomicLong numOfPending=new AtomicLong();
+	private volatile Thread ticker;
+	private volatile boolean idle;
+	// ticker thread only
+	private long startNanos;
+	private long tick;
+
+	/**
+	 * Doubly linked into its bucket, through the sentinel at the bucket head
+	 */
+	abstract static class Timer {
+		final static int PENDING=0;
+		final static int EXPIRED=1;
+		final static int CANCELLED=2;
+		final private static AtomicIntegerFieldUpdater<Timer> STATE=AtomicIntegerFieldUpdater.newUpdater(Timer.class, "state");
+
+		final long dueNanos;
+		long rounds;
+		Timer next, prev;
+		// PENDING until either expired by the ticker or cancelled
+		private volatile int state;
+
+		Timer(long dueNanos) {
+			this.dueNanos=dueNanos;
+		}
+
+		/**
+		 * Runs on the ticker thread
+		 */
+		abstract void expire();
+	}
+
+	final static class Sentinel extends Timer {
+		Sentinel() {
+			super(0);
+			next=prev=this;
+		}
+		void expire() {}
+	}
+
+	HashedTimerWheel(String threadName, long tickNanos, int wheelSize) {
+		this.threadName=threadName;
+		this.tickNanos=tickNanos;
+		int size=Integer.highestOneBit(Math.max(2, wheelSize-1))<<1;
+		wheel=new Timer[size];
+		for (int i=0;i<size;++i)
+			wheel[i]=new Sentinel();
+		mask=size-1;
+	}
+
+	void schedule(Timer t) {
+		numOfPending.incrementAndGet();
+		added.add(t);
+		Thread th=ticker;
+		if (th==null)
+			start();
+		else if (idle)
+			LockSupport.unpark(th);
+	}
+
+	/**
+	 * Cancels a pending timer, it never expires then
+	 * @return false, if the timer expired or was cancelled already
+	 */
+	boolean cancel(Timer t) {
+		if (!Timer.STATE.compareAndSet(t, Timer.PENDING, Timer.CANCELLED))
+			return false;
+		cancelled.add(t);
+		return true;
+	}
+
+	long getNumOfPending() {
+		return numOfPending.get();
+	}
+
+	private synchronized void start() {
+		if (ticker!=null)
+			return;
+		Thread th=new Thread(new Runnable() {public void run() {tickLoop();}}, threadName);
+		th.setDaemon(true);
+		startNanos=System.nanoTime();
+		ticker=th;
+		th.start();
+	}
+
+	private void tickLoop() {
+		for (;;) {
+			if (numOfPending.get()==0) {
+				idle=true;
+				if (numOfPending.get()==0)
+					LockSupport.park(this);
+				idle=false;
+				if (numOfPending.get()==0)
+					continue;
+				// the wheel is empty, no need to walk the ticks slept through
+				tick=Math.max(tick, (System.nanoTime()-startNanos)/tickNanos);
+			}
+			long tickEnd=startNanos+(tick+1)*tickNanos;
+			for (;;) {
+				long sleep=tickEnd-System.nanoTime();
+				if (sleep<=0)
+					break;
+				LockSupport.parkNanos(this, sleep);
+			}
+			transferAdded();
+			expireBucket(wheel[(int)tick & mask], tickEnd);
+			++tick;
+		}
+	}
+
+	private void transferAdded() {
+		Timer t;
+		while ((t=added.poll())!=null) {
+			if (t.state==Timer.CANCELLED) {
+				numOfPending.decrementAndGet();
+				continue;
+			}
+			long due=(t.dueNanos-startNanos)/tickNanos;
+			// already late, goes to the current bucket
+			long at=Math.max(due, tick);
+			t.rounds=(at-tick)/wheel.length;
+			Timer head=wheel[(int)at & mask];
+			t.prev=head.prev;
+			t.next=head;
+			head.prev.next=t;
+			head.prev=t;
+		}
+		while ((t=cancelled.poll())!=null) {
+			// null once expired, or not transferred yet and dropped by the loop above on a later tick
+			if (t.prev!=null) {
+				unlink(t);
+				numOfPending.decrementAndGet();
+			}
+		}
+	}
+
+	private static void unlink(Timer t) {
+		t.prev.next=t.next;
+		t.next.prev=t.prev;
+		t.next=t.prev=null;
+	}
+
+	private void expireBucket(Timer head, long tickEnd) {
+		Timer t=head.next;
+		while (t!=head) {
+			Timer next=t.next;
+			if (t.rounds<=0 && t.dueNanos-tickEnd<=0) {
+				unlink(t);
+				numOfPending.decrementAndGet();
+				if (Timer.STATE.compareAndSet(t, Timer.PENDING, Timer.EXPIRED)) {
+					try {
+						t.expire();
+					} catch (Throwable tt) {
+						tt.printStackTrace();
+					}
+				}
+			} else if (t.rounds>0)
+				--t.rounds;
+			t=next;
+		}
+	}
+
+}
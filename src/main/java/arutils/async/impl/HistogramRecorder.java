@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import arutils.async.Histogram;
+
+/**
+ * Lock free, fixed memory histogram of non negative longs.
+ * HDR style log-linear buckets: values below 16 are exact, above that each power of 2 is split into 8 sub buckets,
+ * so the relative error stays within 12.5%.
+ */
+public final class HistogramRecorder {
+	final static int SUB_BUCKET_BITS=3;
+	final static int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+	final static int LINEAR=2*SUB_BUCKETS;
+	final static int NUM_OF_BUCKETS=LINEAR+(63-SUB_BUCKET_BITS)*SUB_BUCKETS;
+	
+	final private AtomicLongArray buckets=new AtomicLongArray(NUM_OF_BUCKETS);
+	final private LongAdder count=new LongAdder();
+	final private LongAdder sum=new LongAdder();
+	final private LongAccumulator min=new LongAccumulator(Math::min, Long.MAX_VALUE);
+	final private LongAccumulator max=new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+	public void record(long value) {
+		if (value<0) value=0;
+		buckets.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		min.accumulate(value);
+		max.accumulate(value);
+	}
+
+	static int bucketIndex(long value) {
+		if (value<LINEAR)
+			return (int)value;
+		int exp=63-Long.numberOfLeadingZeros(value);
+		int sub=(int)(value>>>(exp-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+		return LINEAR+(exp-SUB_BUCKET_BITS-1)*SUB_BUCKETS+sub;
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index<LINEAR)
+			return index;
+		int exp=(index-LINEAR)/SUB_BUCKETS+SUB_BUCKET_BITS+1;
+		int sub=(index-LINEAR)%SUB_BUCKETS;
+		long lower=((long)(SUB_BUCKETS+sub))<<(exp-SUB_BUCKET_BITS);
+		return lower+(1L<<(exp-SUB_BUCKET_BITS))-1;
+	}
+
+	public Histogram snapshot() {
+		return snapshot(0);
+	}
+
+	/**
+	 * @param zeros - number of 0 values counted elsewhere, hot paths may keep the trivial case in a LongAdder rather than record it
+	 */
+	public Histogram snapshot(long zeros) {
+		long[] counts=new long[NUM_OF_BUCKETS];
+		for (int i=0;i<NUM_OF_BUCKETS;++i)
+			counts[i]=buckets.get(i);
+		counts[0]+=zeros;
+		long c=count.sum();
+		return new HistogramSnapshot(counts, c+zeros, sum.sum(), c==0||zeros>0?0:min.get(), c==0?0:max.get());
+	}
+
+	static class HistogramSnapshot implements Histogram {
+		final private long[] counts;
+		final private long count;
+		final private long sum;
+		final private long min;
+		final private long max;
+
+		HistogramSnapshot(long[] counts, long count, long sum, long min, long max) {
+			this.counts=counts;
+			this.count=count;
+			this.sum=sum;
+			this.min=min;
+			this.max=max;
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public long getMin() {
+			return min;
+		}
+
+		@Override
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public double getMean() {
+			return count==0?0:((double)sum)/count;
+		}
+
+		@Override
+		public long getValueAtPercentile(double percentile) {
+			long total=0;
+			for (long c : counts) total+=c;
+			if (total==0)
+				return 0;
+			long rank=(long)Math.ceil(total*Math.min(100, Math.max(0, percentile))/100.0);
+			if (rank<1) rank=1;
+			long seen=0;
+			for (int i=0;i<counts.length;++i) {
+				seen+=counts[i];
+				if (seen>=rank)
+					return Math.min(bucketUpperBound(i), max);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "{count="+count+", min="+min+", mean="+String.format("%.1f", getMean())+", p50="+getValueAtPercentile(50)
+				+", p99="+getValueAtPercentile(99)+", max="+max+"}";
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import arutils.async.Request;
+import arutils.async.Workload.Priority;
+
+/**
+ * Producers reserve a slot by a CAS on the size counter, and append to a non-blocking linked queue.
+ * Nobody takes a lock: idle workers, as well as producers waiting for MAX_REQUESTS to drain,
+ * register themselves and park, the other side unparks them.
+ * A waiter always re-checks the condition after registering, so a wakeup can not be lost.
+ */
+class LockFreeRequestQueue<T> extends RequestQueue<T> {
+	// lanes by Priority ordinal
+	final private ConcurrentLinkedQueue<Request<T>>[] lanes;
+	final private AtomicInteger size=new AtomicInteger();
+	final private AtomicInteger numOfWorkers=new AtomicInteger();
+	final private ConcurrentLinkedQueue<Thread> idleWorkers=new ConcurrentLinkedQueue<>();
+	final private ConcurrentLinkedQueue<Thread> blockedProducers=new ConcurrentLinkedQueue<>();
+	// a full queue usually drains within a few scheduler slices, yielding is cheaper than park/unpark
+	final static int SPINS=16;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	LockFreeRequestQueue(ServiceImpl<T> service, int maxRequests, int maxWorkers, long agingNanos, boolean singleLane) {
+		super(service, maxRequests, maxWorkers, agingNanos, singleLane);
+		lanes=new ConcurrentLinkedQueue[LANES];
+		for (int i=0;i<LANES;++i)
+			lanes[i]=new ConcurrentLinkedQueue<>();
+	}
+
+	@Override
+	void put(Request<T> req) throws InterruptedException {
+		awaitReserve(1);
+		append(req);
+	}
+
+	@Override
+	void putNoLimit(Request<T> req) throws InterruptedException {
+		size.incrementAndGet();
+		append(req);
+	}
+
+	@Override
+	int putAll(List<Request<T>> reqs, int from) throws InterruptedException {
+		int n=awaitReserve(reqs.size()-from);
+		for (int i=from;i<from+n;++i)
+			offer(reqs.get(i));
+		wakeUpWorkers(n);
+		return n;
+	}
+
+	@Override
+	boolean tryPut(Request<T> req) throws InterruptedException {
+		if (!reserve())
+			return false;
+		req.getWorkload().callSubmitted();
+		append(req);
+		return true;
+	}
+
+	private boolean reserve() {
+		return reserve(1)==1;
+	}
+
+	/**
+	 * @return number of reserved slots, up to <code>max</code>, 0 if the queue is full
+	 */
+	private int reserve(int max) {
+		for (;;) {
+			int s=size.get();
+			if (s>=MAX_REQUESTS)
+				return 0;
+			int n=Math.min(max, MAX_REQUESTS-s);
+			if (size.compareAndSet(s, s+n))
+				return n;
+		}
+	}
+
+	private int awaitReserve(int max) throws InterruptedException {
+		int spins=SPINS;
+		for (;;) {
+			int n=reserve(max);
+			if (n>0)
+				return n;
+			if (spins-->0) {
+				Thread.yield();
+				continue;
+			}
+			Thread me=Thread.currentThread();
+			boolean woken;
+			blockedProducers.add(me);
+			try {
+				if (size.get()>=MAX_REQUESTS)
+					LockSupport.park(this);
+			} finally {
+				// not registered anymore: a consumer polled this thread, and spent its wakeup on it
+				woken=!blockedProducers.remove(me);
+			}
+			if (Thread.interrupted()) {
+				// leaving without a reservation, the wakeup goes to the next blocked producer
+				if (woken)
+					wakeUpProducers(1);
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	private void offer(Request<T> req) {
+		lanes[lane(req)].offer(req);
+	}
+
+	/**
+	 * @param aged - submission time, the lower lane requests submitted before are taken first
+	 */
+	private Request<T> poll(long aged) {
+		if (agingNanos>0) {
+			for (int i=LANES-1;i>0;--i) {
+				Request<T> head=lanes[i].peek();
+				if (head!=null && head.getSubmitNanos()-aged<=0) {
+					Request<T> r=lanes[i].poll();
+					if (r!=null)
+						return r;
+				}
+			}
+		}
+		for (int i=0;i<LANES;++i) {
+			Request<T> r=lanes[i].poll();
+			if (r!=null)
+				return r;
+		}
+		return null;
+	}
+
+	private boolean isEmpty() {
+		for (int i=0;i<LANES;++i) {
+			if (!lanes[i].isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private void append(Request<T> req) {
+		offer(req);
+		wakeUpWorkers(1);
+	}
+
+	private void wakeUpWorkers(int numOfRequests) {
+		for (int i=0;i<numOfRequests;++i) {
+			Thread idle=idleWorkers.poll();
+			if (idle!=null)
+				LockSupport.unpark(idle);
+			else if (acquireWorker())
+				service.startWorker();
+			else
+				return;
+		}
+	}
+
+	@Override
+	List<Request<T>> takeBulk(int bulkSize, int minBulkSize, long lingerNanos, long releaseTimeout) throws InterruptedException {
+		if (releaseExcessWorker())
+			return null;
+		long timeout=TimeUnit.MILLISECONDS.toNanos(releaseTimeout);
+		long deadline=System.nanoTime()+timeout;
+		for (;;) {
+			if (lingerNanos>0 && !isEmpty() && size.get()<minBulkSize)
+				linger(minBulkSize, lingerNanos);
+			long aged=agingNanos>0?System.nanoTime()-agingNanos:0;
+			Request<T> r=poll(aged);
+			if (r!=null) {
+				ArrayList<Request<T>> bulk=new ArrayList<>(Math.min(bulkSize, Math.max(1, size.get())));
+				bulk.add(r);
+				while (bulk.size()<bulkSize && (r=poll(aged))!=null)
+					bulk.add(r);
+				size.addAndGet(-bulk.size());
+				wakeUpProducers(bulk.size());
+				return bulk;
+			}
+			long remaining=deadline-System.nanoTime();
+			if (remaining<=0) {
+				numOfWorkers.decrementAndGet();
+				// a producer may have seen this worker as running, and did not start a new one
+				if (isEmpty() || !acquireWorker())
+					return null;
+				deadline=System.nanoTime()+timeout;
+				continue;
+			}
+			Thread me=Thread.currentThread();
+			idleWorkers.add(me);
+			try {
+				if (isEmpty())
+					LockSupport.parkNanos(this, remaining);
+			} finally {
+				idleWorkers.remove(me);
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private void linger(int minBulkSize, long lingerNanos) throws InterruptedException {
+		long deadline=System.nanoTime()+lingerNanos;
+		Thread me=Thread.currentThread();
+		for (;;) {
+			long remaining=deadline-System.nanoTime();
+			if (remaining<=0 || size.get()>=minBulkSize)
+				return;
+			idleWorkers.add(me);
+			try {
+				if (size.get()<minBulkSize)
+					LockSupport.parkNanos(this, remaining);
+			} finally {
+				idleWorkers.remove(me);
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private void wakeUpProducers(int n) {
+		for (int i=0;i<n;++i) {
+			Thread t=blockedProducers.poll();
+			if (t==null)
+				return;
+			LockSupport.unpark(t);
+		}
+	}
+
+	@Override
+	void releaseWorker() {
+		numOfWorkers.decrementAndGet();
+	}
+
+	@Override
+	boolean tryAcquireInlineWorker() {
+		return isEmpty() && acquireWorker();
+	}
+
+	@Override
+	void releaseInlineWorker() {
+		numOfWorkers.decrementAndGet();
+		// a put that found no worker slot offered its request before, so it is seen here
+		if (!isEmpty())
+			wakeUpWorkers(1);
+	}
+
+	@Override
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * O(n) walk of the lane, for metrics
+	 */
+	@Override
+	int size(Priority priority) {
+		return lanes[priority.ordinal()].size();
+	}
+
+	@Override
+	int getNumOfWorkers() {
+		return numOfWorkers.get();
+	}
+
+	private boolean releaseExcessWorker() {
+		for (;;) {
+			int n=numOfWorkers.get();
+			if (n<=workerLimit)
+				return false;
+			if (numOfWorkers.compareAndSet(n, n-1))
+				return true;
+		}
+	}
+
+	private boolean acquireWorker() {
+		for (;;) {
+			int n=numOfWorkers.get();
+			if (n>=workerLimit)
+				return false;
+			if (numOfWorkers.compareAndSet(n, n+1))
+				return true;
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import arutils.async.Request;
+import arutils.async.Workload.Priority;
+
+class LockingRequestQueue<T> extends RequestQueue<T> {
+	// lanes by Priority ordinal, each one added at the front and taken from the back
+	final private ArrayDeque<Request<T>>[] lanes;
+	private int size=0;
+	final private Lock lock=new ReentrantLock();
+	final private Condition requestAddedCond=lock.newCondition();
+	final private Condition requestDrainedCond=lock.newCondition();
+	int numOfWorkers=0;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	LockingRequestQueue(ServiceImpl<T> service, int maxRequests, int maxWorkers, long agingNanos, boolean singleLane) {
+		super(service, maxRequests, maxWorkers, agingNanos, singleLane);
+		lanes=new ArrayDeque[LANES];
+		for (int i=0;i<LANES;++i)
+			lanes[i]=new ArrayDeque<>();
+	}
+
+	private void add(Request<T> req) {
+		lanes[lane(req)].addFirst(req);
+		++size;
+	}
+
+	private void drain(ArrayList<Request<T>> bulk, int bulkSize) {
+		if (agingNanos>0) {
+			long aged=System.nanoTime()-agingNanos;
+			for (int i=LANES-1;i>0 && bulk.size()<bulkSize;--i) {
+				ArrayDeque<Request<T>> lane=lanes[i];
+				while (bulk.size()<bulkSize && !lane.isEmpty() && lane.peekLast().getSubmitNanos()-aged<=0)
+					bulk.add(lane.removeLast());
+			}
+		}
+		for (int i=0;i<LANES && bulk.size()<bulkSize;++i) {
+			ArrayDeque<Request<T>> lane=lanes[i];
+			while (bulk.size()<bulkSize && !lane.isEmpty())
+				bulk.add(lane.removeLast());
+		}
+		size-=bulk.size();
+	}
+
+	@Override
+	void put(Request<T> req) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (size>=MAX_REQUESTS)
+				requestDrainedCond.await();
+			add(req);
+			checkWorkers();
+			requestAddedCond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void putNoLimit(Request<T> req) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			add(req);
+			checkWorkers();
+			requestAddedCond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int putAll(List<Request<T>> reqs, int from) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (size>=MAX_REQUESTS)
+				requestDrainedCond.await();
+			int n=Math.min(MAX_REQUESTS-size, reqs.size()-from);
+			for (int i=from;i<from+n;++i)
+				add(reqs.get(i));
+			checkWorkers(n);
+			requestAddedCond.signalAll();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	boolean tryPut(Request<T> req) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (size>=MAX_REQUESTS)
+				return false;
+			req.getWorkload().callSubmitted();
+			add(req);
+			checkWorkers();
+			requestAddedCond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	@Override
+	List<Request<T>> takeBulk(int bulkSize, int minBulkSize, long lingerNanos, long releaseTimeout) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (numOfWorkers>workerLimit) {
+				--numOfWorkers;
+				return null;
+			}
+			while (size==0) {
+				boolean signaled=requestAddedCond.await(releaseTimeout,TimeUnit.MILLISECONDS);
+				if (!signaled && size==0) {
+					--numOfWorkers;
+					return null;
+				}
+			}
+			if (lingerNanos>0 && size<minBulkSize) {
+				long remaining=lingerNanos;
+				while (size<minBulkSize && remaining>0)
+					remaining=requestAddedCond.awaitNanos(remaining);
+				if (size==0) // drained by another worker meanwhile
+					return Collections.emptyList();
+			}
+			ArrayList<Request<T>> bulk=new ArrayList<>(Math.min(bulkSize, size));
+			drain(bulk, bulkSize);
+			requestDrainedCond.signalAll();
+			return bulk;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void releaseWorker() {
+		lock.lock();
+		try {
+			--numOfWorkers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	boolean tryAcquireInlineWorker() {
+		lock.lock();
+		try {
+			if (size>0 || numOfWorkers>=workerLimit)
+				return false;
+			++numOfWorkers;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void releaseInlineWorker() {
+		lock.lock();
+		try {
+			--numOfWorkers;
+			// puts made meanwhile may have found no worker slot
+			checkWorkers(size);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int size(Priority priority) {
+		lock.lock();
+		try {
+			return lanes[priority.ordinal()].size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int getNumOfWorkers() {
+		lock.lock();
+		try {
+			return numOfWorkers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkWorkers() {
+		if (numOfWorkers>=workerLimit)
+			return;
+		++numOfWorkers;
+		service.startWorker();
+	}
+
+	private void checkWorkers(int numOfRequests) {
+		for (int i=0;i<numOfRequests && numOfWorkers<workerLimit;++i) {
+			++numOfWorkers;
+			service.startWorker();
+		}
+	}
+
+}
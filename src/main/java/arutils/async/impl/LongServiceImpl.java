@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async.impl;
+
+import arutils.async.CompletionCallback;
+import arutils.async.LongRequest;
+import arutils.async.LongService;
+import arutils.async.LongServiceBackend;
+import arutils.async.Result;
+import arutils.async.Workload;
+
+/**
+ * Queues {@link LongRequest}s next to the generic requests. Long calls are not coalesced, the key would have to be boxed.
+ */
+public class LongServiceImpl<T> extends ServiceImpl<T> implements LongService<T> {
+
+	public LongServiceImpl(AsyncEngineImpl engine, LongServiceBackend<T> backend, Workload trackingWorkload) {
+		super(engine, backend, trackingWorkload);
+	}
+
+	@Override
+	public Result<T> call(Workload w, long key) throws InterruptedException {
+		ResultImpl<T> result=new ResultImpl<T>(null);
+		if (shed(w, result, null))
+			return result;
+		// a Result only wakes up its waiters, not worth a thread hop
+		LongRequest<T> req=new LongRequest<T>(w, result, key, null);
+		result.setRequest(req);
+		submit(w, req);
+		return result;
+	}
+
+	@Override
+	public void callWithCallback(Workload w, CompletionCallback<T> callback, long key) throws InterruptedException {
+		if (shed(w, callback, null))
+			return;
+		submit(w, new LongRequest<T>(w, callback, key, callbackExecutor(callback)));
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import arutils.async.CompletionCallback;
+import arutils.async.Deadline;
+import arutils.async.Result;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload;
+import arutils.async.Workload.Priority;
+
+/**
+ * N single worker services over the same backend. A request is routed by its partition key,
+ * so requests with the same key are served by one worker, in the submission order.
+ */
+public class PartitionedServiceImpl<T> implements Service<T> {
+	final private ServiceBackend<T> backend;
+	final private ServiceImpl<T>[] partitions;
+	final private ServiceStats stats=new ServiceStats();
+	final private Workload trackingWorkload;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PartitionedServiceImpl(AsyncEngineImpl engine, ServiceBackend<T> backend, Workload trackingWorkload, int numOfPartitions) {
+		this.backend=backend;
+		this.trackingWorkload=trackingWorkload;
+		partitions=new ServiceImpl[numOfPartitions];
+		for (int i=0;i<numOfPartitions;++i)
+			// priority lanes would reorder the requests of a key
+			partitions[i]=new ServiceImpl<T>(engine, backend, trackingWorkload, 1, stats, true);
+	}
+
+	private ServiceImpl<T> partition(Object[] args) {
+		return partitions[partitionIndex(args)];
+	}
+
+	private int partitionIndex(Object[] args) {
+		Object key;
+		try {
+			key=backend.getPartitionKey(args);
+		} catch (Throwable tt) {tt.printStackTrace();key=null;}
+		if (key==null)
+			return ThreadLocalRandom.current().nextInt(partitions.length);
+		int h=key.hashCode();
+		h^=(h>>>16);
+		return (h & 0x7fffffff) % partitions.length;
+	}
+
+	@Override
+	public Result<T> call(Workload w, Object... args) throws InterruptedException {
+		return partition(args).call(w, args);
+	}
+
+	@Override
+	public Result<T> call(Workload w, Deadline deadline, Object... args) throws InterruptedException {
+		return partition(args).call(w, deadline, args);
+	}
+
+	@Override
+	public Result<T> callNoLimit(Workload w, Object... args) throws InterruptedException {
+		return partition(args).callNoLimit(w, args);
+	}
+
+	@Override
+	public void callWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		partition(args).callWithCallback(w, callback, args);
+	}
+
+	@Override
+	public void callWithCallback(Workload w, Deadline deadline, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		partition(args).callWithCallback(w, deadline, callback, args);
+	}
+
+	@Override
+	public void callWithCallbackNoLimit(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		partition(args).callWithCallbackNoLimit(w, callback, args);
+	}
+
+	@Override
+	public void callAll(Workload w, CompletionCallback<T> callback, Iterable<Object[]> argsList) throws InterruptedException {
+		List<List<Object[]>> split=split(argsList, null);
+		for (int i=0;i<partitions.length;++i) {
+			if (!split.get(i).isEmpty())
+				partitions[i].callAll(w, callback, split.get(i));
+		}
+	}
+
+	@Override
+	public List<Result<T>> callAll(Workload w, Iterable<Object[]> argsList) throws InterruptedException {
+		List<List<Integer>> positions=new ArrayList<>(partitions.length);
+		List<List<Object[]>> split=split(argsList, positions);
+		int total=0;
+		for (List<Object[]> l : split)
+			total+=l.size();
+		List<Result<T>> results=new ArrayList<>(Collections.nCopies(total, (Result<T>)null));
+		for (int i=0;i<partitions.length;++i) {
+			if (split.get(i).isEmpty())
+				continue;
+			List<Result<T>> part=partitions[i].callAll(w, split.get(i));
+			List<Integer> pos=positions.get(i);
+			for (int j=0;j<part.size();++j)
+				results.set(pos.get(j), part.get(j));
+		}
+		return results;
+	}
+
+	/**
+	 * Splits the calls by partition, keeping their order within every partition
+	 * @param positions if not null, receives the original positions of the calls of every partition
+	 */
+	private List<List<Object[]>> split(Iterable<Object[]> argsList, List<List<Integer>> positions) {
+		List<List<Object[]>> split=new ArrayList<>(partitions.length);
+		for (int i=0;i<partitions.length;++i) {
+			split.add(new ArrayList<Object[]>());
+			if (positions!=null)
+				positions.add(new ArrayList<Integer>());
+		}
+		int idx=0;
+		for (Object[] args : argsList) {
+			int p=partitionIndex(args);
+			split.get(p).add(args);
+			if (positions!=null)
+				positions.get(p).add(idx);
+			++idx;
+		}
+		return split;
+	}
+
+	@Override
+	public void callWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		partition(args).callWithCallback(callback, args);
+	}
+
+	@Override
+	public void callWithCallbackNoLimit(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		partition(args).callWithCallbackNoLimit(callback, args);
+	}
+
+	@Override
+	public Workload getTrackingWorkload() {
+		return trackingWorkload;
+	}
+
+	@Override
+	public boolean tryCallWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		return partition(args).tryCallWithCallback(callback, args);
+	}
+
+	@Override
+	public boolean tryCallWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		return partition(args).tryCallWithCallback(w, callback, args);
+	}
+
+	@Override
+	public ServiceMetrics getMetrics() {
+		int queueLength=0, numOfWorkers=0, workerLimit=0;
+		int[] laneQueueLengths=new int[Priority.values().length];
+		for (ServiceImpl<T> p : partitions) {
+			queueLength+=p.getQueueLength();
+			for (Priority priority : Priority.values())
+				laneQueueLengths[priority.ordinal()]+=p.getQueueLength(priority);
+			numOfWorkers+=p.getNumOfWorkers();
+			workerLimit+=p.getWorkerLimit();
+		}
+		return stats.snapshot(queueLength, laneQueueLengths, numOfWorkers, workerLimit);
+	}
+
+}
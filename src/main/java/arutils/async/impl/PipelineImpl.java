@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import arutils.async.CompletionCallback;
+import arutils.async.Pipeline;
+import arutils.async.Result;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+public class PipelineImpl<T> implements Pipeline<T> {
+
+	static class BuilderImpl implements Pipeline.Builder {
+		private final AsyncEngineImpl engine;
+		private final List<String> names=new ArrayList<>();
+		private final List<ServiceBackend<?>> backends=new ArrayList<>();
+
+		BuilderImpl(AsyncEngineImpl engine) {
+			this.engine=engine;
+		}
+
+		@Override
+		public Pipeline.Builder stage(String serviceName, ServiceBackend<?> backend) {
+			if (names.contains(serviceName))
+				throw new IllegalArgumentException("Stage "+serviceName+" is in the pipeline already");
+			names.add(serviceName);
+			backends.add(backend);
+			return this;
+		}
+
+		@Override
+		public <T> Pipeline<T> build() {
+			if (names.isEmpty())
+				throw new IllegalStateException("Pipeline has no stages");
+			Stage next=null;
+			for (int i=names.size()-1;i>=0;--i) {
+				Stage stage=new Stage(engine.register(names.get(i), backends.get(i)), next);
+				if (next!=null && stage.service instanceof ServiceImpl && next.service instanceof ServiceImpl)
+					((ServiceImpl<?>)stage.service).setDownstream((ServiceImpl<?>)next.service);
+				next=stage;
+			}
+			return new PipelineImpl<T>(next, new ArrayList<>(names));
+		}
+	}
+
+	static final class Stage {
+		final Service<Object> service;
+		// null for the last stage
+		final Stage next;
+
+		@SuppressWarnings("unchecked")
+		Stage(Service<?> service, Stage next) {
+			this.service=(Service<Object>)service;
+			this.next=next;
+		}
+	}
+
+	/**
+	 * Passes the result of a stage on to the next stage, completes the pipeline call with the result of the last one
+	 */
+	static final class StageCallback<T> implements CompletionCallback<Object> {
+		private final Stage next;
+		private final CompletionCallback<T> callback;
+
+		StageCallback(Stage next, CompletionCallback<T> callback) {
+			this.next=next;
+			this.callback=callback;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void completed(Workload workload, Object ret, Object[] args) {
+			if (next==null) {
+				callback.completed(workload, (T)ret, args);
+				return;
+			}
+			Object[] nextArgs=(ret instanceof Object[])?(Object[])ret:new Object[] {ret};
+			StageCallback<T> nextCallback=new StageCallback<T>(next.next, callback);
+			Forwarding<Object> forwarding=(next.service instanceof ServiceImpl)?Forwarding.current((ServiceImpl<Object>)next.service):null;
+			if (forwarding!=null) {
+				forwarding.add(forwarding.target.newForwardedRequest(workload, nextCallback, nextArgs));
+				return;
+			}
+			try {
+				next.service.callWithCallback(workload, nextCallback, nextArgs);
+			} catch (InterruptedException e) {
+				callback.errored(workload, e, nextArgs);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void errored(Workload workload, Throwable e, Object[] args) {
+			callback.errored(workload, e, args);
+		}
+	}
+
+	private final Stage first;
+	private final List<String> stageNames;
+
+	PipelineImpl(Stage first, List<String> stageNames) {
+		this.first=first;
+		this.stageNames=Collections.unmodifiableList(stageNames);
+	}
+
+	@Override
+	public Result<T> call(Workload w, Object... args) throws InterruptedException {
+		ResultImpl<T> result=new ResultImpl<T>(args);
+		callWithCallback(w, result, args);
+		return result;
+	}
+
+	@Override
+	public void callWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		first.service.callWithCallback(w, new StageCallback<T>(first.next, callback), args);
+	}
+
+	@Override
+	public List<String> getStageNames() {
+		return stageNames;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.List;
+
+import arutils.async.Request;
+import arutils.async.Workload.Priority;
+
+/**
+ * Hand-over point between the callers of a {@link ServiceImpl} and its workers.
+ * Implementations own the accounting of running workers, and start new ones through the service.
+ * Requests are queued in a FIFO lane per {@link Priority}. A bulk is filled with the aged requests of the lower lanes first,
+ * then from the highest lane down. A single lane queue keeps every request in the NORMAL lane, in the submission order.
+ */
+abstract class RequestQueue<T> {
+	final ServiceImpl<T> service;
+	final int MAX_REQUESTS;
+	final int MAX_WORKERS;
+	final static Priority[] PRIORITIES=Priority.values();
+	final static int LANES=PRIORITIES.length;
+	// 0 - strict priority
+	final long agingNanos;
+	// priorities ignored, see ServiceBackend.getPartitions()
+	final boolean singleLane;
+	// MAX_WORKERS, unless tuned by an AdaptiveLimiter
+	volatile int workerLimit;
+
+	RequestQueue(ServiceImpl<T> service, int maxRequests, int maxWorkers, long agingNanos, boolean singleLane) {
+		this.service=service;
+		this.agingNanos=agingNanos;
+		this.singleLane=singleLane;
+		this.MAX_REQUESTS=maxRequests;
+		this.MAX_WORKERS=maxWorkers;
+		this.workerLimit=maxWorkers;
+	}
+
+	/**
+	 * New workers are started only up to the limit, the workers above it quit on their next {@link #takeBulk(int, int, long, long)}
+	 */
+	void setWorkerLimit(int limit) {
+		workerLimit=Math.max(1, Math.min(MAX_WORKERS, limit));
+	}
+
+	int getWorkerLimit() {
+		return workerLimit;
+	}
+
+	final int lane(Request<T> req) {
+		return singleLane?Priority.NORMAL.ordinal():req.getPriority().ordinal();
+	}
+
+	/**
+	 * Enqueues the request, waits while the queue holds MAX_REQUESTS or more
+	 */
+	abstract void put(Request<T> req) throws InterruptedException;
+	/**
+	 * Enqueues the request regardless of the queue size
+	 */
+	abstract void putNoLimit(Request<T> req) throws InterruptedException;
+	/**
+	 * Enqueues the requests of <code>reqs</code> starting at <code>from</code>, as many as there is room for below MAX_REQUESTS,
+	 * waits while the queue is full. Workers are woken up once for the whole chunk.
+	 * @return number of enqueued requests, at least one
+	 */
+	abstract int putAll(List<Request<T>> reqs, int from) throws InterruptedException;
+	/**
+	 * Enqueues the request only if the queue holds less than MAX_REQUESTS.
+	 * Submission is reported to the request workload only when the request is accepted.
+	 */
+	abstract boolean tryPut(Request<T> req) throws InterruptedException;
+	/**
+	 * Waits for requests and removes up to <code>bulkSize</code> of them, in the submission order.
+	 * Once the queue is not empty, waits up to <code>lingerNanos</code> more for <code>minBulkSize</code> requests to queue up.
+	 * @return null, if nothing arrived within <code>releaseTimeout</code> milliseconds, or there are more workers than the limit.
+	 * The calling worker is released already. 
+	 */
+	abstract List<Request<T>> takeBulk(int bulkSize, int minBulkSize, long lingerNanos, long releaseTimeout) throws InterruptedException;
+	/**
+	 * Releases a worker, which quits for any other reason than {@link #takeBulk(int, int, long, long)} returning null
+	 */
+	abstract void releaseWorker();
+	/**
+	 * Accounts the calling thread as a worker, if no requests are queued and the worker limit allows.
+	 * Lets a pipeline stage process the bulk forwarded by the previous stage on the forwarding worker.
+	 * @see #releaseInlineWorker()
+	 */
+	abstract boolean tryAcquireInlineWorker();
+	/**
+	 * Releases a worker acquired by {@link #tryAcquireInlineWorker()}, wakes up a worker for the requests queued meanwhile
+	 */
+	abstract void releaseInlineWorker();
+	abstract int size();
+	abstract int size(Priority priority);
+	abstract int getNumOfWorkers();
+
+}
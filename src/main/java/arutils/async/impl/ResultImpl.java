@@ -17,120 +17,208 @@
 
 package arutils.async.impl;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import arutils.async.CompletionCallback;
+import arutils.async.Request;
 import arutils.async.Result;
 import arutils.async.Workload;
 
+/**
+ * One shot result. A CAS state machine, no locks: waiters push themselves onto a stack and park,
+ * only if the result is not there yet. The completing thread unparks them.
+ */
 public class ResultImpl<T> implements Result<T>, CompletionCallback<T> {
 
+	final static int WAITING=0;
+	final static int COMPLETING=1;
+	final static int SUCCESS=2;
+	final static int FAILURE=3;
+	final static int CANCELED=4;
+	
+	@SuppressWarnings("rawtypes")
+	final private static AtomicIntegerFieldUpdater<ResultImpl> STATE=AtomicIntegerFieldUpdater.newUpdater(ResultImpl.class, "state");
+	@SuppressWarnings("rawtypes")
+	final private static AtomicReferenceFieldUpdater<ResultImpl,WaitNode> WAITERS=AtomicReferenceFieldUpdater.newUpdater(ResultImpl.class, WaitNode.class, "waiters");
+	@SuppressWarnings("rawtypes")
+	final private static AtomicReferenceFieldUpdater<ResultImpl,CompletableFuture> FUTURE=AtomicReferenceFieldUpdater.newUpdater(ResultImpl.class, CompletableFuture.class, "future");
+
 	private T ret;
 	private Throwable err;
 	final private Object[] args;
-	static enum Status {WAITING, SUCCESS, FAILURE, CANCELED}
-	private Status status=Status.WAITING;
-	private Lock lock=new ReentrantLock();
-	private Condition cond=lock.newCondition();
+	private volatile int state=WAITING;
+	private volatile WaitNode waiters;
+	private volatile CompletableFuture<T> future;
+	private volatile Request<T> request;
+	
+	final static class WaitNode {
+		final Thread thread=Thread.currentThread();
+		volatile boolean released;
+		WaitNode next;
+	}
 	
 	public ResultImpl(Object[] args) {
 		this.args=args;
 	}
 	
+	void setRequest(Request<T> request) {
+		this.request=request;
+	}
+	
 	@Override
 	public boolean cancel(boolean mayInterruptIfRunning) {
-		// TODO Auto-generated method stub
-		return false;
+		if (!STATE.compareAndSet(this, WAITING, CANCELED))
+			return false;
+		Request<T> r=request;
+		if (r!=null)
+			r.cancel();
+		finish();
+		return true;
 	}
 
 	@Override
 	public boolean isCancelled() {
-		lock.lock();
-		try {
-			return status==Status.CANCELED;
-		} finally {
-			lock.unlock();	
-		}
+		return state==CANCELED;
 	}
 
 	@Override
 	public boolean isDone() {
-		lock.lock();
-		try {
-			return status!=Status.WAITING;
-		} finally {
-			lock.unlock();	
-		}
+		return state!=WAITING;
 	}
 
 	@Override
 	public T get() throws InterruptedException, ExecutionException {
-		lock.lockInterruptibly();
-		try {
-			while (status==Status.WAITING) cond.await();
-			return proceed();
-		} finally {
-			lock.unlock();	
-		}	
+		int s=state;
+		if (s<=COMPLETING)
+			s=awaitDone(false, 0L);
+		return proceed(s);
 	}
 
 	@Override
 	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-		lock.lockInterruptibly();
-		try {
-			while (status==Status.WAITING) {
-				boolean signalled=cond.await(timeout, unit);
-				if (!signalled) throw new TimeoutException(timeout+" "+unit+" elapsed");
-			}
-			return proceed();
-		} finally {
-			lock.unlock();	
-		}	
+		int s=state;
+		if (s<=COMPLETING) {
+			s=awaitDone(true, unit.toNanos(timeout));
+			if (s<=COMPLETING) throw new TimeoutException(timeout+" "+unit+" elapsed");
+		}
+		return proceed(s);
 	}
 
-	private T proceed() throws InterruptedException, ExecutionException {
-		switch (status) {
+	private T proceed(int s) throws ExecutionException {
+		switch (s) {
 		case SUCCESS:
 			return ret;
 		case CANCELED:
-			throw new InterruptedException("Canceled");
+			throw new CancellationException("Canceled");
 		default:
 			throw new ExecutionException(err);
 		}
 	}
 
+	private int awaitDone(boolean timed, long nanos) throws InterruptedException {
+		final long deadline=timed?System.nanoTime()+nanos:0L;
+		WaitNode node=null;
+		boolean queued=false;
+		for (;;) {
+			int s=state;
+			if (s>COMPLETING) {
+				if (node!=null) node.released=true;
+				return s;
+			} else if (s==COMPLETING) {
+				Thread.yield();
+			} else if (Thread.interrupted()) {
+				if (node!=null) node.released=true;
+				throw new InterruptedException();
+			} else if (node==null) {
+				node=new WaitNode();
+			} else if (!queued) {
+				// pushed, now re-check the state before parking
+				queued=push(node);
+			} else if (timed) {
+				nanos=deadline-System.nanoTime();
+				if (nanos<=0L) {
+					node.released=true;
+					return state;
+				}
+				LockSupport.parkNanos(this, nanos);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	private boolean push(WaitNode node) {
+		WaitNode head=waiters;
+		node.next=head;
+		return WAITERS.compareAndSet(this, head, node);
+	}
+
+	private void finish() {
+		for (WaitNode w=WAITERS.getAndSet(this, null); w!=null; w=w.next) {
+			if (!w.released)
+				LockSupport.unpark(w.thread);
+		}
+		CompletableFuture<T> f=future;
+		if (f!=null)
+			complete(f);
+	}
+
+	private void complete(CompletableFuture<T> f) {
+		switch (state) {
+		case SUCCESS:
+			f.complete(ret);
+			break;
+		case FAILURE:
+			f.completeExceptionally(err);
+			break;
+		case CANCELED:
+			f.cancel(false);
+			break;
+		}
+	}
 	
 	@Override
 	public void completed(Workload workload, T ret, Object[] args) {
-		lock.lock();
-		try {
-			status=Status.SUCCESS;
+		if (STATE.compareAndSet(this, WAITING, COMPLETING)) {
 			this.ret=ret;
-			cond.signalAll();
-		} finally {
-			lock.unlock();	
+			state=SUCCESS;
+			finish();
 		}
 		//workload.callCompleted();
 	}
 
 	@Override
 	public void errored(Workload workload, Throwable e, Object[] args) {
-		lock.lock();
-		try {
-			status=Status.FAILURE;
+		if (STATE.compareAndSet(this, WAITING, COMPLETING)) {
 			this.err=e;
-			cond.signalAll();
-		} finally {
-			lock.unlock();	
+			state=FAILURE;
+			finish();
 		}
 		//workload.callCompleted();
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public CompletableFuture<T> toCompletableFuture() {
+		CompletableFuture<T> f=future;
+		if (f!=null)
+			return f;
+		f=new CompletableFuture<>();
+		if (!FUTURE.compareAndSet(this, null, f))
+			return future;
+		// the result may have landed before the future was published
+		if (state>COMPLETING)
+			complete(f);
+		return f;
+	}
+
 	@Override
 	public Object[] getArgs() {
 		return args;
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import arutils.async.CompletionCallback;
+import arutils.async.Deadline;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.RingService;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.WaitStrategy;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload;
+import arutils.async.Workload.Priority;
+
+/**
+ * Disruptor style service: a pre-allocated ring of reusable request slots, many producers, a single worker.
+ * A producer claims a sequence, fills the slot in place and publishes it. The worker hands every run of published slots
+ * to the backend as a reusable list view, reports the requests on its own thread, and frees the slots.
+ * <p>
+ * Nothing is allocated per call in the steady state, as long as callers use {@link RingService#publish} with callbacks,
+ * and the backend does not keep the bulk list beyond {@link ServiceBackend#process(List)}.
+ * Deadlines are honoured; cancellation, priorities, coalescing, shedding and bisecting are not supported in this mode,
+ * {@link Result#cancel(boolean)} returns false. The worker processes whatever is published and never lingers,
+ * {@link ServiceBackend#getMaxLingerNanos()} and {@link ServiceBackend#getMinBulkSize()} are ignored.
+ * The ring is bounded, so the NoLimit calls wait for room as well.
+ */
+public class RingServiceImpl<T> implements RingService<T> {
+	final private AsyncEngineImpl engine;
+	final private ServiceBackend<T> backend;
+	final private Workload trackingWorkload;
+	final private ServiceStats stats=new ServiceStats();
+	final private Slot<T>[] ring;
+	final private int mask;
+	final private WaitStrategy waitStrategy;
+	final private int bulkSize;
+	final private long releaseTimeoutNanos;
+	// next sequence to claim
+	final private AtomicLong claimed=new AtomicLong();
+	// the slots of the sequences below are free
+	final private AtomicLong consumed=new AtomicLong();
+	final private AtomicBoolean running=new AtomicBoolean();
+	private volatile Thread parkedWorker;
+	// a full ring is usually drained within microseconds
+	final static long PRODUCER_PARK_NANOS=10000;
+
+	static final class Slot<T> extends Request<T> {
+		// sequence of the request in the slot, -1 - none yet
+		volatile long published=-1;
+		final Object[] args1=new Object[1];
+		final Object[] args2=new Object[2];
+
+		Slot() {
+			super(null, null, null);
+		}
+
+		void set(Workload w, CompletionCallback<T> callback, Object[] args, Deadline deadline) {
+			reuse(w, callback, args, deadline);
+		}
+
+		void clear() {
+			args1[0]=null;
+			args2[0]=args2[1]=null;
+			reuse(null, null, null, null);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RingServiceImpl(AsyncEngineImpl engine, ServiceBackend<T> backend, Workload trackingWorkload) {
+		this.engine=engine;
+		this.backend=backend;
+		this.trackingWorkload=trackingWorkload;
+		int size=backend.getMaxQueuedRequests();
+		if (size<=0)
+			size=10000;
+		int capacity=Integer.highestOneBit(Math.max(2, size-1))<<1;
+		ring=new Slot[capacity];
+		for (int i=0;i<capacity;++i)
+			ring[i]=new Slot<T>();
+		mask=capacity-1;
+		WaitStrategy ws;
+		try {
+			ws=backend.getWaitStrategy();
+		} catch (Throwable tt) {tt.printStackTrace();ws=null;}
+		waitStrategy=ws==null?WaitStrategy.PARK:ws;
+		int bs=backend.getMaxBulkSize();
+		bulkSize=bs<=0?1:Math.min(bs, capacity);
+		long t=backend.getWorkerReleaseTimeout();
+		releaseTimeoutNanos=TimeUnit.MILLISECONDS.toNanos(t<=0?1:t);
+	}
+
+	private long claim() {
+		long seq=claimed.getAndIncrement();
+		// a claimed sequence has to be published, so interrupts are not honoured here
+		while (seq-consumed.get()>=ring.length)
+			waitForRoom();
+		return seq;
+	}
+
+	private long tryClaim() {
+		for (;;) {
+			long seq=claimed.get();
+			if (seq-consumed.get()>=ring.length)
+				return -1;
+			if (claimed.compareAndSet(seq, seq+1))
+				return seq;
+		}
+	}
+
+	private void waitForRoom() {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		default:
+			LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+		}
+	}
+
+	private void publish(long seq) {
+		ring[(int)seq & mask].published=seq;
+		stats.submitted.increment();
+		if (!running.get()) {
+			if (running.compareAndSet(false, true))
+				engine.getWorkerExecutorService().submit(new Worker());
+			return;
+		}
+		Thread t=parkedWorker;
+		if (t!=null)
+			LockSupport.unpark(t);
+	}
+
+	@Override
+	public void publish(Workload w, CompletionCallback<T> callback, Object arg0) throws InterruptedException {
+		w.callSubmitted();
+		long seq=claim();
+		Slot<T> s=ring[(int)seq & mask];
+		s.args1[0]=arg0;
+		s.set(w, callback, s.args1, null);
+		publish(seq);
+	}
+
+	@Override
+	public void publish(Workload w, CompletionCallback<T> callback, Object arg0, Object arg1) throws InterruptedException {
+		w.callSubmitted();
+		long seq=claim();
+		Slot<T> s=ring[(int)seq & mask];
+		s.args2[0]=arg0;
+		s.args2[1]=arg1;
+		s.set(w, callback, s.args2, null);
+		publish(seq);
+	}
+
+	@Override
+	public void callWithCallback(Workload w, Deadline deadline, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		w.callSubmitted();
+		long seq=claim();
+		ring[(int)seq & mask].set(w, callback, args, deadline);
+		publish(seq);
+	}
+
+	@Override
+	public void callWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		callWithCallback(w, null, callback, args);
+	}
+
+	@Override
+	public void callWithCallbackNoLimit(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		callWithCallback(w, null, callback, args);
+	}
+
+	@Override
+	public void callWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		callWithCallback(trackingWorkload, null, callback, args);
+	}
+
+	@Override
+	public void callWithCallbackNoLimit(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		callWithCallback(trackingWorkload, null, callback, args);
+	}
+
+	@Override
+	public Result<T> call(Workload w, Deadline deadline, Object... args) throws InterruptedException {
+		// a published slot is processed anyway, so the call can not be cancelled
+		ResultImpl<T> result=new ResultImpl<T>(args) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return false;
+			}
+		};
+		callWithCallback(w, deadline, result, args);
+		return result;
+	}
+
+	@Override
+	public Result<T> call(Workload w, Object... args) throws InterruptedException {
+		return call(w, null, args);
+	}
+
+	@Override
+	public Result<T> callNoLimit(Workload w, Object... args) throws InterruptedException {
+		return call(w, null, args);
+	}
+
+	@Override
+	public void callAll(Workload w, CompletionCallback<T> callback, Iterable<Object[]> argsList) throws InterruptedException {
+		for (Object[] args : argsList)
+			callWithCallback(w, null, callback, args);
+	}
+
+	@Override
+	public List<Result<T>> callAll(Workload w, Iterable<Object[]> argsList) throws InterruptedException {
+		List<Result<T>> results=new ArrayList<>();
+		for (Object[] args : argsList)
+			results.add(call(w, null, args));
+		return results;
+	}
+
+	@Override
+	public Workload getTrackingWorkload() {
+		return trackingWorkload;
+	}
+
+	@Override
+	public boolean tryCallWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		return tryCallWithCallback(trackingWorkload, callback, args);
+	}
+
+	@Override
+	public boolean tryCallWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		long seq=tryClaim();
+		if (seq<0) {
+			stats.rejected.increment();
+			return false;
+		}
+		w.callSubmitted();
+		ring[(int)seq & mask].set(w, callback, args, null);
+		publish(seq);
+		return true;
+	}
+
+	@Override
+	public ServiceMetrics getMetrics() {
+		int queueLength=(int)Math.max(0, claimed.get()-consumed.get());
+		int[] laneQueueLengths=new int[Priority.values().length];
+		laneQueueLengths[Priority.NORMAL.ordinal()]=queueLength;
+		return stats.snapshot(queueLength, laneQueueLengths, running.get()?1:0, 1);
+	}
+
+	/**
+	 * Reusable read only view of the requests of a bulk
+	 */
+	final static class BulkView<T> extends AbstractList<Request<T>> implements RandomAccess {
+		final private Slot<T>[] items;
+		private int size;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		BulkView(int capacity) {
+			items=new Slot[capacity];
+		}
+
+		@Override
+		public Request<T> get(int index) {
+			if (index<0 || index>=size)
+				throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+			return items[index];
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	class Worker implements Runnable {
+		final private BulkView<T> bulk=new BulkView<T>(bulkSize);
+
+		public void run() {
+			boolean released=false;
+			try {
+				long next=consumed.get();
+				for (;;) {
+					int n=0;
+					while (n<bulkSize && ring[(int)(next+n) & mask].published==next+n)
+						++n;
+					if (n==0) {
+						if (!await(next)) {
+							released=true;
+							return;
+						}
+						continue;
+					}
+					process(next, n);
+					next+=n;
+					consumed.lazySet(next);
+				}
+			} finally {
+				// let the next publish start a new worker
+				if (!released)
+					running.set(false);
+			}
+		}
+
+		/**
+		 * @return false, if nothing was published within the release timeout, and the worker quits
+		 */
+		private boolean await(long next) {
+			Slot<T> s=ring[(int)next & mask];
+			long deadline=System.nanoTime()+releaseTimeoutNanos;
+			while (s.published!=next) {
+				long remaining=deadline-System.nanoTime();
+				if (remaining<=0) {
+					running.set(false);
+					// a producer may have seen this worker as running, and did not start a new one
+					if (s.published!=next || !running.compareAndSet(false, true))
+						return false;
+					deadline=System.nanoTime()+releaseTimeoutNanos;
+					continue;
+				}
+				switch (waitStrategy) {
+				case BUSY_SPIN:
+					break;
+				case YIELD:
+					Thread.yield();
+					break;
+				default:
+					parkedWorker=Thread.currentThread();
+					if (s.published!=next)
+						LockSupport.parkNanos(this, remaining);
+					parkedWorker=null;
+				}
+			}
+			return true;
+		}
+
+		private void process(long from, int n) {
+			long taken=System.nanoTime();
+			bulk.size=0;
+			for (int i=0;i<n;++i) {
+				Slot<T> s=ring[(int)(from+i) & mask];
+				long wait=taken-s.getSubmitNanos();
+				stats.queueWaitNanos.record(wait);
+				stats.laneQueueWaitNanos[Priority.NORMAL.ordinal()].record(wait);
+				if (s.isExpired(taken)) {
+					stats.dropped.increment();
+					try {s.errored(new TimeoutException("Deadline exceeded by "+TimeUnit.NANOSECONDS.toMillis(taken-s.getDeadline().getNanoTime())+"ms"));} catch (Throwable tt) {}
+				} else {
+					s.countInto(stats.completed, stats.errored);
+					bulk.items[bulk.size++]=s;
+				}
+			}
+			if (bulk.size>0) {
+				stats.bulkSize.record(bulk.size);
+				try {
+					backend.process(bulk);
+					stats.processNanos.record(System.nanoTime()-taken);
+					for (int i=0;i<bulk.size;++i) {
+						try {
+							bulk.items[i].completed();
+						} catch (Throwable tt) {}
+					}
+				} catch (Throwable e) {
+					stats.processNanos.record(System.nanoTime()-taken);
+					for (int i=0;i<bulk.size;++i) {try {bulk.items[i].errored(e);} catch (Throwable tt) {}}
+				}
+			}
+			for (int i=0;i<n;++i)
+				ring[(int)(from+i) & mask].clear();
+			for (int i=0;i<bulk.size;++i)
+				bulk.items[i]=null;
+		}
+	}
+
+}
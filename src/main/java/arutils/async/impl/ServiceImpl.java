@@ -17,50 +17,131 @@
 
 package arutils.async.impl;
 
-import java.util.ArrayDeque;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 
 import arutils.async.CompletionCallback;
+import arutils.async.Deadline;
 import arutils.async.Request;
+import arutils.async.RequestRejectedException;
 import arutils.async.Result;
 import arutils.async.Service;
 import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.ServiceMetrics;
 import arutils.async.Workload;
+import arutils.async.Workload.Priority;
 
 
 public class ServiceImpl<T> implements Service<T> {
 
-	//final private AsyncEngineImpl engine;
+	final private AsyncEngineImpl engine;
 	final private ServiceBackend<T> backend;
-	final private ArrayDeque<Request<T>> requestsQueue= new ArrayDeque<>();
-	final private Lock lock=new ReentrantLock();
-	final private Condition requestAddedCond=lock.newCondition();
-	final private Condition requestDrainedCond=lock.newCondition();
+	final private RequestQueue<T> requestsQueue;
+	final private ServiceStats stats;
+	final private ConcurrentHashMap<Object,CoalescedCall<T>> inFlight=new ConcurrentHashMap<>();
+	// null, unless the backend is in the adaptive workers mode
+	final private AdaptiveLimiter limiter;
+	// null, unless the backend sheds load
+	final private CoDelShedder shedder;
+	// null, unless the backend spills to disk; set by the public constructor only, partitions would share the directory
+	private SpillQueue<T> spill;
 	int MAX_REQUESTS;
-	int numOfWorkers=0;
 	int MAX_WORKERS;
 	private Workload trackingWorkload;
+	// next stage of a pipeline, null unless the service is a pipeline stage
+	private volatile ServiceImpl<?> downstream;
 	
 	//private static final boolean DEBUG = System.getenv("DEBUG")!=null;
 
 
 	public ServiceImpl(AsyncEngineImpl engine, ServiceBackend<T> backend,Workload trackingWorkload) {
-		//this.engine=engine;
+		this(engine, backend, trackingWorkload, backend.getMaxWorkers(), new ServiceStats(), false);
+		spill=createSpill();
+		if (spill!=null && spill.hasPending()) {
+			// replays the calls of a previous run
+			try {
+				spill.refill();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @param maxWorkers - overrides backend.getMaxWorkers()
+	 * @param stats - may be shared by several services, e.g. partitions of a PartitionedServiceImpl
+	 * @param singleLane - queues all requests in one lane, in the submission order, regardless of their priority
+	 */
+	ServiceImpl(AsyncEngineImpl engine, ServiceBackend<T> backend,Workload trackingWorkload, int maxWorkers, ServiceStats stats, boolean singleLane) {
+		this.engine=engine;
 		this.backend=backend;
 		this.trackingWorkload=trackingWorkload;
-		MAX_WORKERS=backend.getMaxWorkers();
+		this.stats=stats;
+		MAX_WORKERS=maxWorkers;
 		if (MAX_WORKERS<=0)
 			MAX_WORKERS=20;
 		MAX_REQUESTS=backend.getMaxQueuedRequests();
 		if (MAX_REQUESTS<=0)
 			MAX_REQUESTS=10000;
-		
+		requestsQueue=createQueue(singleLane);
+		limiter=createLimiter();
+		shedder=createShedder();
+		if (limiter!=null)
+			requestsQueue.setWorkerLimit(limiter.getLimit());
+	}
+
+	private CoDelShedder createShedder() {
+		try {
+			long target=backend.getShedTargetMillis();
+			if (target<=0)
+				return null;
+			long interval=backend.getShedIntervalMillis();
+			return new CoDelShedder(TimeUnit.MILLISECONDS.toNanos(target), TimeUnit.MILLISECONDS.toNanos(interval<=0?100:interval));
+		} catch (Throwable tt) {tt.printStackTrace();return null;}
+	}
+
+	private SpillQueue<T> createSpill() {
+		try {
+			int threshold=backend.getSpillThreshold();
+			if (threshold<=0)
+				return null;
+			String dir=backend.getSpillDirectory();
+			return new SpillQueue<T>(this, stats, dir==null?null:new File(dir), backend.isSpillDurable(), Math.min(threshold, MAX_REQUESTS), trackingWorkload);
+		} catch (Throwable tt) {tt.printStackTrace();return null;}
+	}
+
+	private AdaptiveLimiter createLimiter() {
+		try {
+			if (MAX_WORKERS<=1 || !backend.isAdaptiveWorkers())
+				return null;
+			return new AdaptiveLimiter(backend.getMinWorkers(), MAX_WORKERS);
+		} catch (Throwable tt) {tt.printStackTrace();return null;}
+	}
+	
+	private RequestQueue<T> createQueue(boolean singleLane) {
+		QueueType qt;
+		try {
+			qt=backend.getQueueType();
+		} catch (Throwable tt) {tt.printStackTrace();qt=null;}
+		if (qt==QueueType.LOCK_FREE)
+			return new LockFreeRequestQueue<>(this, MAX_REQUESTS, MAX_WORKERS, getPriorityAgingNanos(), singleLane);
+		return new LockingRequestQueue<>(this, MAX_REQUESTS, MAX_WORKERS, getPriorityAgingNanos(), singleLane);
+	}
+
+	private long getPriorityAgingNanos() {
+		try {
+			long t=backend.getPriorityAgingMillis();
+			return (t<=0)?0:TimeUnit.MILLISECONDS.toNanos(t);
+		} catch (Throwable tt) {tt.printStackTrace();return 0;}
 	}
 	
 	private int getBulkSize() {
@@ -70,6 +151,20 @@ public class ServiceImpl<T> implements Service<T> {
 		} catch (Throwable tt) {tt.printStackTrace();return 1;}
 	}
 	
+	private long getMaxLingerNanos() {
+		try {
+			long t=backend.getMaxLingerNanos();
+			return (t<=0)?0:t;
+		} catch (Throwable tt) {tt.printStackTrace();return 0;}
+	}
+
+	private int getMinBulkSize(int bulkSize) {
+		try {
+			int ms=backend.getMinBulkSize();
+			return (ms<=0 || ms>bulkSize)?bulkSize:ms;
+		} catch (Throwable tt) {tt.printStackTrace();return bulkSize;}
+	}
+	
 	private long getWorkerReleaseTimeout() {
 		try {
 			long t=backend.getWorkerReleaseTimeout();
@@ -78,10 +173,51 @@ public class ServiceImpl<T> implements Service<T> {
 		
 	}
 
+	private int getBisectDepth() {
+		try {
+			int d=backend.getBisectDepth();
+			return (d<=0)?0:d;
+		} catch (Throwable tt) {tt.printStackTrace();return 0;}
+	}
+
+	private long getBisectBackoffMillis() {
+		try {
+			long t=backend.getBisectBackoffMillis();
+			return (t<=0)?0:t;
+		} catch (Throwable tt) {tt.printStackTrace();return 0;}
+	}
+
+	private Object getCoalesceKey(Object[] args) {
+		try {
+			return backend.coalesceKey(args);
+		} catch (Throwable tt) {tt.printStackTrace();return null;}
+	}
+
+	Executor callbackExecutor(CompletionCallback<T> callback) {
+		// a Result only wakes up its waiters, not worth a thread hop
+		return callback instanceof ResultImpl?null:engine.getCallbackExecutor();
+	}
+
+	Request<T> newRequest(Workload w, CompletionCallback<T> callback, Object[] args, Deadline deadline) {
+		// a Result only wakes up its waiters, not worth a thread hop
+		if (callback instanceof ResultImpl) {
+			ResultImpl<T> result=(ResultImpl<T>)callback;
+			Request<T> req=new Request<T>(w,callback,args,null,deadline);
+			result.setRequest(req);
+			return req;
+		}
+		return new Request<T>(w,callback,args,engine.getCallbackExecutor(),deadline);
+	}
+
 	@Override
 	public Result<T> call(Workload w, Object... args) throws InterruptedException {
+		return call(w, null, args);
+	}
+
+	@Override
+	public Result<T> call(Workload w, Deadline deadline, Object... args) throws InterruptedException {
 		ResultImpl<T> callback=new ResultImpl<T>(args);
-		callWithCallback(w, callback,args);
+		callWithCallback(w, deadline, callback, args);
 		return callback;
 	}
 	
@@ -94,35 +230,126 @@ public class ServiceImpl<T> implements Service<T> {
 
 	@Override
 	public void callWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
-		Request<T> req=new Request<T>(w,callback,args);
-		w.callSubmitted();
-		lock.lockInterruptibly();
-		try {
-			while (requestsQueue.size()>=MAX_REQUESTS)
-				requestDrainedCond.await();
-			requestsQueue.addFirst(req);
-			checkWorkers();
-			requestAddedCond.signalAll();
-		} finally {
-			lock.unlock();
+		callWithCallback(w, null, callback, args);
+	}
+
+	@Override
+	public void callWithCallback(Workload w, Deadline deadline, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		if (shed(w, callback, args))
+			return;
+		// a deadline of one caller must not fail the others
+		Object key=deadline==null?getCoalesceKey(args):null;
+		if (key!=null) {
+			callCoalesced(key, w, callback, args, false);
+			return;
 		}
+		Request<T> req=newRequest(w,callback,args,deadline);
+		w.callSubmitted();
+		requestsQueue.put(req);
+		stats.submitted.increment();
 	}
 
 	
 	@Override
 	public void callWithCallbackNoLimit(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
-		Request<T> req=new Request<T>(w,callback,args);
-		w.callSubmitted();
-		lock.lockInterruptibly();
-		try {
-			requestsQueue.addFirst(req);
-			checkWorkers();
-			requestAddedCond.signalAll();
-		} finally {
-			lock.unlock();
+		if (shed(w, callback, args))
+			return;
+		Object key=getCoalesceKey(args);
+		if (key!=null) {
+			callCoalesced(key, w, callback, args, true);
+			return;
 		}
+		if (spill!=null && spill.offer(w, callback, args))
+			return;
+		Request<T> req=newRequest(w,callback,args,null);
+		w.callSubmitted();
+		requestsQueue.putNoLimit(req);
+		stats.submitted.increment();
 	}
 	
+	@Override
+	public void callAll(Workload w, CompletionCallback<T> callback, Iterable<Object[]> argsList) throws InterruptedException {
+		ArrayList<Request<T>> batch=new ArrayList<>();
+		for (Object[] args : argsList) {
+			if (shed(w, callback, args))
+				continue;
+			Object key=getCoalesceKey(args);
+			if (key!=null) {
+				putAll(w, batch);
+				callCoalesced(key, w, callback, args, false);
+			} else
+				batch.add(newRequest(w,callback,args,null));
+		}
+		putAll(w, batch);
+	}
+
+	@Override
+	public List<Result<T>> callAll(Workload w, Iterable<Object[]> argsList) throws InterruptedException {
+		ArrayList<Result<T>> results=new ArrayList<>();
+		ArrayList<Request<T>> batch=new ArrayList<>();
+		for (Object[] args : argsList) {
+			ResultImpl<T> result=new ResultImpl<T>(args);
+			results.add(result);
+			if (shed(w, result, args))
+				continue;
+			Object key=getCoalesceKey(args);
+			if (key!=null) {
+				putAll(w, batch);
+				callCoalesced(key, w, result, args, false);
+			} else
+				batch.add(newRequest(w,result,args,null));
+		}
+		putAll(w, batch);
+		return results;
+	}
+
+	private boolean isShedding() {
+		return shedder!=null && shedder.isDropping() && requestsQueue.size()>0;
+	}
+
+	/**
+	 * @return true, if the call is failed right away with {@link RequestRejectedException}, as the service sheds load
+	 */
+	boolean shed(Workload w, CompletionCallback<T> callback, Object[] args) {
+		if (!isShedding())
+			return false;
+		stats.shed.increment();
+		Request<T> req=new Request<T>(w,callback,args,callbackExecutor(callback),null);
+		w.callSubmitted();
+		req.errored(new RequestRejectedException("Service is shedding load, queue wait over "+TimeUnit.NANOSECONDS.toMillis(shedder.targetNanos)+"ms"));
+		return true;
+	}
+
+	/**
+	 * Enqueues a request built by a subclass, waits while the queue is full
+	 */
+	void submit(Workload w, Request<T> req) throws InterruptedException {
+		w.callSubmitted();
+		requestsQueue.put(req);
+		stats.submitted.increment();
+	}
+
+	/**
+	 * Enqueues a request replayed from the spill, counted as submitted once spilled
+	 */
+	void enqueueNoLimit(Request<T> req) throws InterruptedException {
+		requestsQueue.putNoLimit(req);
+	}
+
+	/**
+	 * Enqueues and clears the batch, in chunks the queue has room for
+	 */
+	private void putAll(Workload w, List<Request<T>> batch) throws InterruptedException {
+		for (int i=0;i<batch.size();++i)
+			w.callSubmitted();
+		for (int from=0;from<batch.size();) {
+			int n=requestsQueue.putAll(batch, from);
+			stats.submitted.add(n);
+			from+=n;
+		}
+		batch.clear();
+	}
+
 	@Override
 	public void callWithCallback(CompletionCallback<T> callback, Object... args) throws InterruptedException {
 		callWithCallback(trackingWorkload, callback, args);
@@ -145,19 +372,127 @@ public class ServiceImpl<T> implements Service<T> {
 	
 	@Override
 	public boolean tryCallWithCallback(Workload w, CompletionCallback<T> callback, Object... args) throws InterruptedException {
-		Request<T> req=new Request<>(w,callback,args);
-		lock.lockInterruptibly();
-		try {
-			while (requestsQueue.size()>=MAX_REQUESTS)
-				return false;
+		if (isShedding()) {
+			stats.shed.increment();
+			return false;
+		}
+		Object key=getCoalesceKey(args);
+		if (key!=null) {
+			// joins an identical call in flight, but never leads one
+			final Request<T> follower=new Request<T>(w,callback,args,callbackExecutor(callback),null);
+			if (inFlight.computeIfPresent(key, (k,c) -> {w.callSubmitted(); c.addFollower(follower); return c;})!=null) {
+				stats.coalesced.increment();
+				return true;
+			}
+		}
+		Request<T> req=newRequest(w,callback,args,null);
+		if (requestsQueue.tryPut(req)) {
+			stats.submitted.increment();
+			return true;
+		}
+		stats.rejected.increment();
+		return false;
+	}
+	
+	/**
+	 * Joins an identical request queued or in flight, or enqueues a new one, which later identical calls may join.
+	 * Coalesced requests can not be cancelled through their Result, as other callers may be waiting on them.
+	 */
+	private void callCoalesced(Object key, final Workload w, CompletionCallback<T> callback, Object[] args, boolean noLimit) throws InterruptedException {
+		Executor executor=callbackExecutor(callback);
+		final Request<T> follower=new Request<T>(w,callback,args,executor,null);
+		final CoalescedCall<T> candidate=new CoalescedCall<T>(inFlight, key, callback);
+		CoalescedCall<T> c=inFlight.compute(key, (k,existing) -> {
 			w.callSubmitted();
-			requestsQueue.addFirst(req);
-			checkWorkers();
-			requestAddedCond.signalAll();
-		} finally {
-			lock.unlock();
+			if (existing==null)
+				return candidate;
+			existing.addFollower(follower);
+			return existing;
+		});
+		if (c!=candidate) {
+			stats.coalesced.increment();
+			return;
 		}
-		return true;
+		Request<T> req=new Request<T>(w,candidate,args,executor,null);
+		try {
+			if (noLimit)
+				requestsQueue.putNoLimit(req);
+			else
+				requestsQueue.put(req);
+		} catch (InterruptedException e) {
+			// followers may have joined already, the request has to be served anyway
+			requestsQueue.putNoLimit(req);
+			stats.submitted.increment();
+			throw e;
+		}
+		stats.submitted.increment();
+	}
+	
+	void setDownstream(ServiceImpl<?> downstream) {
+		this.downstream=downstream;
+	}
+
+	/**
+	 * Request to be passed to {@link #forward(List)}. The submission is reported to the workload right away,
+	 * so the workload does not complete while the request waits for the rest of the bulk.
+	 */
+	Request<T> newForwardedRequest(Workload w, CompletionCallback<T> callback, Object[] args) {
+		Request<T> req=newRequest(w, callback, args, null);
+		w.callSubmitted();
+		return req;
+	}
+
+	/**
+	 * Takes a bulk forwarded by the previous pipeline stage. When nothing is queued and the worker limit allows,
+	 * the calling worker processes the bulk right away, otherwise the bulk is queued, waiting for room if the queue is full.
+	 */
+	void forward(List<Request<T>> reqs) {
+		stats.submitted.add(reqs.size());
+		if (requestsQueue.tryAcquireInlineWorker()) {
+			try {
+				int bulkSize=getBulkSize();
+				int bisectDepth=getBisectDepth();
+				Worker worker=new Worker();
+				for (int from=0;from<reqs.size();from+=bulkSize)
+					worker.handle(reqs.subList(from, Math.min(reqs.size(), from+bulkSize)), bisectDepth);
+			} finally {
+				requestsQueue.releaseInlineWorker();
+			}
+			return;
+		}
+		int from=0;
+		try {
+			while (from<reqs.size())
+				from+=requestsQueue.putAll(reqs, from);
+		} catch (InterruptedException e) {
+			stats.errored.add(reqs.size()-from);
+			for (Request<T> r : reqs.subList(from, reqs.size())) {try {r.errored(e);} catch (Throwable tt) {}}
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public ServiceMetrics getMetrics() {
+		int[] laneQueueLengths=new int[Priority.values().length];
+		for (Priority p : Priority.values())
+			laneQueueLengths[p.ordinal()]=getQueueLength(p);
+		return stats.snapshot(getQueueLength(), laneQueueLengths, getNumOfWorkers(), getWorkerLimit());
+	}
+	
+	int getQueueLength() {
+		return requestsQueue.size();
+	}
+	
+	int getQueueLength(Priority priority) {
+		return requestsQueue.size(priority);
+	}
+
+	int getNumOfWorkers() {
+		return requestsQueue.getNumOfWorkers();
+	}
+
+	int getWorkerLimit() {
+		return requestsQueue.getWorkerLimit();
 	}
 	
 	
@@ -165,61 +500,174 @@ public class ServiceImpl<T> implements Service<T> {
 		public void run() {
 			//if (DEBUG) System.err.println("Worker Started - "+Thread.currentThread());
 			int bulkSize=getBulkSize();
+			int minBulkSize=getMinBulkSize(bulkSize);
+			long lingerNanos=getMaxLingerNanos();
 			long releaseTimeout=getWorkerReleaseTimeout();
+			int bisectDepth=getBisectDepth();
+			boolean released=false;
 			try {
-				lock.lockInterruptibly();
 				for (;;) {
-					
-					while (requestsQueue.size()==0) {
-						boolean signaled=requestAddedCond.await(releaseTimeout,TimeUnit.MILLISECONDS);
-						if (!signaled && requestsQueue.size()==0) {
-//							if (DEBUG) System.err.println("Worker Released - "+Thread.currentThread());
-							return;
-						}
-					}
-					
-					ArrayList<Request<T>> bulk=new ArrayList<>(Math.min(bulkSize, requestsQueue.size()));
-					while (requestsQueue.size()>0 && bulk.size()<bulkSize) {			
-						Request<T> r=requestsQueue.removeLast();
-						bulk.add(r);
-					}
-					requestDrainedCond.signalAll();
-					// Time to call the backend
-					try {
-						lock.unlock();
-						try {
-							backend.process(Collections.unmodifiableList(bulk));
-							for (Request<T> r : bulk) {
-								try {
-									r.completed();
-								} catch (Throwable tt) {}
-							}
-						} catch (Throwable e) {
-							for (Request<T> r : bulk) {try {r.errored(e);} catch (Throwable tt) {}}
-						}
-					} finally {
-						lock.lockInterruptibly();
+					if (spill!=null && spill.hasPending() && requestsQueue.size()<spill.threshold/2)
+						spill.refill();
+					List<Request<T>> bulk=requestsQueue.takeBulk(bulkSize, minBulkSize, lingerNanos, releaseTimeout);
+					if (bulk==null) {
+//						if (DEBUG) System.err.println("Worker Released - "+Thread.currentThread());
+						released=true;
+						return;
 					}
+					handle(bulk, bisectDepth);
 				}
 			} catch (InterruptedException e) {
 				//e.printStackTrace();
 			} finally {
-				--numOfWorkers;
-				lock.unlock();
+				if (!released)
+					requestsQueue.releaseWorker();
 			}	
 			
 		}
+
+		private void handle(List<Request<T>> bulk, int bisectDepth) {
+			long taken=System.nanoTime();
+			for (Request<T> r : bulk) {
+				long wait=taken-r.getSubmitNanos();
+				stats.queueWaitNanos.record(wait);
+				stats.laneQueueWaitNanos[r.getPriority().ordinal()].record(wait);
+			}
+			bulk=dropUnwanted(bulk, taken);
+			if (shedder!=null)
+				bulk=shedStale(bulk, taken);
+			if (bulk.isEmpty())
+				return;
+			for (Request<T> r : bulk)
+				r.countInto(stats.completed, stats.errored);
+			ServiceImpl<?> next=downstream;
+			if (next==null) {
+				// Time to call the backend
+				process(bulk, taken, bisectDepth);
+				return;
+			}
+			// results completed by the bulk are collected by the pipeline callbacks and forwarded as one bulk
+			Forwarding<?> forwarding=Forwarding.begin(next);
+			try {
+				process(bulk, taken, bisectDepth);
+			} finally {
+				forwarding.end();
+			}
+			forwarding.flush();
+		}
+
+		/**
+		 * Calls the backend, records a bulk size and a process time sample per call, split retries included.
+		 * @param depth - how many more times a failed bulk may be split in halves and retried
+		 */
+		private void process(List<Request<T>> bulk, long start, int depth) {
+			stats.bulkSize.record(bulk.size());
+			// completions for BulkCompletionCallbacks are reported once the bulk is done
+			int mark=Request.beginBulk();
+			try {
+				backend.process(Collections.unmodifiableList(bulk));
+				long processNanos=System.nanoTime()-start;
+				stats.processNanos.record(processNanos);
+				if (limiter!=null)
+					requestsQueue.setWorkerLimit(limiter.onSample(processNanos, requestsQueue.getNumOfWorkers()));
+				for (Request<T> r : bulk) {
+					try {
+						r.completed();
+					} catch (Throwable tt) {}
+				}
+			} catch (Throwable e) {
+				stats.processNanos.record(System.nanoTime()-start);
+				if (depth>0 && bulk.size()>1) {
+					bisect(bulk, depth, e);
+					return;
+				}
+				for (Request<T> r : bulk) {try {r.errored(e);} catch (Throwable tt) {}}
+			} finally {
+				Request.endBulk(mark);
+			}
+		}
+
+		/**
+		 * Retries both halves of a failed bulk, to isolate the poison requests.
+		 * The requests the failed call reported already are not retried.
+		 */
+		private void bisect(List<Request<T>> bulk, int depth, Throwable e) {
+			List<Request<T>> pending=new ArrayList<>(bulk.size());
+			for (Request<T> r : bulk) {
+				if (!r.isReported())
+					pending.add(r);
+			}
+			if (pending.isEmpty())
+				return;
+			long backoff=getBisectBackoffMillis();
+			if (backoff>0) {
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					for (Request<T> r : pending) {try {r.errored(e);} catch (Throwable tt) {}}
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			int half=(pending.size()+1)/2;
+			stats.splitRetries.increment();
+			process(pending.subList(0, half), System.nanoTime(), depth-1);
+			if (half<pending.size()) {
+				stats.splitRetries.increment();
+				process(pending.subList(half, pending.size()), System.nanoTime(), depth-1);
+			}
+		}
 		
 	}
 	
-	private void checkWorkers() {
-		if (numOfWorkers==MAX_WORKERS)
-			return;
-		ExecutorService es=AsyncEngineImpl.getExecutorService();
+	/**
+	 * Fails cancelled and expired requests, so they never reach the backend
+	 */
+	private List<Request<T>> dropUnwanted(List<Request<T>> bulk, long now) {
+		int i=0;
+		for (;i<bulk.size();++i) {
+			Request<T> r=bulk.get(i);
+			if (r.isCancelled() || r.isExpired(now))
+				break;
+		}
+		if (i==bulk.size())
+			return bulk;
+		List<Request<T>> ret=new ArrayList<>(bulk.size()-1);
+		for (int j=0;j<bulk.size();++j) {
+			Request<T> r=bulk.get(j);
+			if (j<i) {
+				ret.add(r);
+			} else if (r.isCancelled()) {
+				stats.dropped.increment();
+				try {r.errored(new CancellationException("Request cancelled"));} catch (Throwable tt) {}
+			} else if (r.isExpired(now)) {
+				stats.dropped.increment();
+				try {r.errored(new TimeoutException("Deadline exceeded by "+TimeUnit.NANOSECONDS.toMillis(now-r.getDeadline().getNanoTime())+"ms"));} catch (Throwable tt) {}
+			} else {
+				ret.add(r);
+			}
+		}
+		return ret;
+	}
+	
+	private List<Request<T>> shedStale(List<Request<T>> bulk, long now) {
+		if (bulk.isEmpty())
+			return bulk;
+		long minSojourn=Long.MAX_VALUE;
+		for (Request<T> r : bulk)
+			minSojourn=Math.min(minSojourn, now-r.getSubmitNanos());
+		if (!shedder.onTake(minSojourn, now))
+			return bulk;
+		stats.shed.add(bulk.size());
+		RequestRejectedException e=new RequestRejectedException("Service is shedding load, queued for "+TimeUnit.NANOSECONDS.toMillis(minSojourn)+"ms or more, target "+TimeUnit.NANOSECONDS.toMillis(shedder.targetNanos)+"ms");
+		for (Request<T> r : bulk) {try {r.errored(e);} catch (Throwable tt) {}}
+		return Collections.emptyList();
+	}
+
+	void startWorker() {
+		ExecutorService es=engine.getWorkerExecutorService();
 		Worker w=new Worker();
-		++numOfWorkers;
 		es.submit(w);
-		
 	}
 
 
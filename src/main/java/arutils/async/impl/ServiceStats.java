@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import arutils.async.Histogram;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload.Priority;
+
+/**
+ * Live, lock free counters of a service. Cheap enough to stay always on.
+ */
+final class ServiceStats {
+	final LongAdder submitted=new LongAdder();
+	final LongAdder completed=new LongAdder();
+	final LongAdder errored=new LongAdder();
+	final LongAdder rejected=new LongAdder();
+	final LongAdder dropped=new LongAdder();
+	final LongAdder coalesced=new LongAdder();
+	final LongAdder shed=new LongAdder();
+	final LongAdder splitRetries=new LongAdder();
+	final LongAdder spilled=new LongAdder();
+	final LongAdder unspilled=new LongAdder();
+	final HistogramRecorder queueWaitNanos=new HistogramRecorder();
+	// by Priority ordinal
+	final HistogramRecorder[] laneQueueWaitNanos=new HistogramRecorder[Priority.values().length];
+	final HistogramRecorder processNanos=new HistogramRecorder();
+	final HistogramRecorder bulkSize=new HistogramRecorder();
+
+	{
+		for (int i=0;i<laneQueueWaitNanos.length;++i)
+			laneQueueWaitNanos[i]=new HistogramRecorder();
+	}
+
+	ServiceMetrics snapshot(int queueLength, int[] laneQueueLengths, int numOfWorkers, int workerLimit) {
+		return new Snapshot(this, queueLength, laneQueueLengths, numOfWorkers, workerLimit);
+	}
+
+	static class Snapshot implements ServiceMetrics {
+		final private long submitted;
+		final private long completed;
+		final private long errored;
+		final private long rejected;
+		final private long dropped;
+		final private long coalesced;
+		final private long shed;
+		final private long splitRetries;
+		final private long spilled;
+		final private long spillLength;
+		final private int queueLength;
+		final private int[] laneQueueLengths;
+		final private int numOfWorkers;
+		final private int workerLimit;
+		final private Histogram queueWaitNanos;
+		final private Histogram[] laneQueueWaitNanos;
+		final private Histogram processNanos;
+		final private Histogram bulkSize;
+
+		Snapshot(ServiceStats stats, int queueLength, int[] laneQueueLengths, int numOfWorkers, int workerLimit) {
+			this.submitted=stats.submitted.sum();
+			this.completed=stats.completed.sum();
+			this.errored=stats.errored.sum();
+			this.rejected=stats.rejected.sum();
+			this.dropped=stats.dropped.sum();
+			this.coalesced=stats.coalesced.sum();
+			this.shed=stats.shed.sum();
+			this.splitRetries=stats.splitRetries.sum();
+			this.spilled=stats.spilled.sum();
+			this.spillLength=Math.max(0, spilled-stats.unspilled.sum());
+			this.queueLength=queueLength;
+			this.laneQueueLengths=laneQueueLengths;
+			this.numOfWorkers=numOfWorkers;
+			this.workerLimit=workerLimit;
+			this.queueWaitNanos=stats.queueWaitNanos.snapshot();
+			this.laneQueueWaitNanos=new Histogram[stats.laneQueueWaitNanos.length];
+			for (int i=0;i<laneQueueWaitNanos.length;++i)
+				laneQueueWaitNanos[i]=stats.laneQueueWaitNanos[i].snapshot();
+			this.processNanos=stats.processNanos.snapshot();
+			this.bulkSize=stats.bulkSize.snapshot();
+		}
+
+		@Override
+		public long getSubmitted() {return submitted;}
+		@Override
+		public long getCompleted() {return completed;}
+		@Override
+		public long getErrored() {return errored;}
+		@Override
+		public long getRejected() {return rejected;}
+		@Override
+		public long getDropped() {return dropped;}
+		@Override
+		public long getCoalesced() {return coalesced;}
+		@Override
+		public long getShed() {return shed;}
+		@Override
+		public long getSplitRetries() {return splitRetries;}
+		@Override
+		public long getSpilled() {return spilled;}
+		@Override
+		public long getSpillLength() {return spillLength;}
+		@Override
+		public int getQueueLength() {return queueLength;}
+		@Override
+		public int getQueueLength(Priority priority) {return laneQueueLengths[priority.ordinal()];}
+		@Override
+		public int getNumOfWorkers() {return numOfWorkers;}
+		@Override
+		public int getWorkerLimit() {return workerLimit;}
+		@Override
+		public Histogram getQueueWaitNanos() {return queueWaitNanos;}
+		@Override
+		public Histogram getQueueWaitNanos(Priority priority) {return laneQueueWaitNanos[priority.ordinal()];}
+		@Override
+		public Histogram getProcessNanos() {return processNanos;}
+		@Override
+		public Histogram getBulkSize() {return bulkSize;}
+
+		private String lanesToString() {
+			StringBuilder sb=new StringBuilder();
+			int used=0;
+			for (Priority p : Priority.values()) {
+				if (laneQueueWaitNanos[p.ordinal()].getCount()==0 && laneQueueLengths[p.ordinal()]==0)
+					continue;
+				++used;
+				sb.append(", ").append(p).append("={queueLength=").append(laneQueueLengths[p.ordinal()])
+					.append(", queueWaitNanos=").append(laneQueueWaitNanos[p.ordinal()]).append('}');
+			}
+			// a single lane repeats the totals
+			return used>1?sb.toString():"";
+		}
+
+		@Override
+		public String toString() {
+			return "{submitted="+submitted+", completed="+completed+", errored="+errored+", rejected="+rejected+", dropped="+dropped+", coalesced="+coalesced+", shed="+shed+", splitRetries="+splitRetries+", spilled="+spilled+", spillLength="+spillLength
+				+", queueLength="+queueLength+", numOfWorkers="+numOfWorkers+", workerLimit="+workerLimit
+				+", queueWaitNanos="+queueWaitNanos+lanesToString()+", processNanos="+processNanos+", bulkSize="+bulkSize+"}";
+		}
+	}
+}
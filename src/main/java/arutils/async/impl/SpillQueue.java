@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+
+package arutils.async.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Workload;
+import arutils.util.ByteBufferHolder;
+import arutils.util.EncodingType;
+import arutils.util.Utils;
+
+/**
+ * Overflow of a {@link ServiceImpl} queue. Once the queue holds the spill threshold of requests, callNoLimit calls are appended
+ * to memory mapped segment files instead of the heap, and replayed into the queue as it drains below half the threshold.
+ * Only the args are written, encoded by {@link EncodingType#encodeObject(ByteBufferHolder, Object, boolean)}. Workloads and callbacks
+ * stay in memory, run length encoded, so calls sharing a callback cost no heap per spilled call.
+ * <p>
+ * Segment: int magic, int 0, long offset of the first unconsumed record, then records. A record is an int length followed by
+ * the encoded number of args and the args. The length is written last, a 0 length ends the segment.
+ * Durable segments are kept across restarts: the unconsumed records are replayed at startup as calls of the tracking workload,
+ * with no callback. The offset of a durable segment only moves past a record once its replayed call is reported, so the calls
+ * moved to the queue but not processed yet are replayed again after a crash: a call may run twice, but is not lost.
+ * Mapped pages are written back by the OS, so the records survive a crash of the process, not of the machine.
+ * <p>
+ * Only the segment files named and shaped as ours are read. A service that is not durable spills to a directory of its own,
+ * created in the spill directory, and never touches the files of others.
+ */
+final class SpillQueue<T> {
+	static final int MAGIC=0x5350494c;
+	static final int HEADER_BYTES=16;
+	static final int SEGMENT_BYTES=64<<20;
+
+	private static final CompletionCallback<Object> NO_CALLBACK=new CompletionCallback<Object>() {
+		public void completed(Workload workload, Object ret, Object[] args) {}
+		public void errored(Workload workload, Throwable e, Object[] args) {}
+	};
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer buf;
+		int readPos=HEADER_BYTES;
+		int writePos=HEADER_BYTES;
+		// read to the end and out of the segments queue, deleted once its replayed calls are reported
+		boolean exhausted;
+
+		Segment(File file, MappedByteBuffer buf) {
+			this.file=file;
+			this.buf=buf;
+		}
+	}
+
+	private static final class Run {
+		final Workload workload;
+		final CompletionCallback<?> callback;
+		int count;
+
+		Run(Workload workload, CompletionCallback<?> callback, int count) {
+			this.workload=workload;
+			this.callback=callback;
+			this.count=count;
+		}
+	}
+
+	/**
+	 * Replayed call of a durable segment, acknowledges the record once the call is reported
+	 */
+	private final class Replayed implements CompletionCallback<T> {
+		final CompletionCallback<T> callback;
+		final Segment segment;
+		// offset past the record
+		final int end;
+		boolean done;
+
+		Replayed(CompletionCallback<T> callback, Segment segment, int end) {
+			this.callback=callback;
+			this.segment=segment;
+			this.end=end;
+		}
+
+		public void completed(Workload workload, T ret, Object[] args) {
+			try {
+				callback.completed(workload, ret, args);
+			} finally {
+				ack(this);
+			}
+		}
+
+		public void errored(Workload workload, Throwable e, Object[] args) {
+			try {
+				callback.errored(workload, e, args);
+			} finally {
+				ack(this);
+			}
+		}
+	}
+
+	private static final Method INVOKE_CLEANER=findInvokeCleaner();
+	private static final Pattern SEGMENT_NAME=Pattern.compile("\\d{16}\\.seg");
+
+	private final ServiceImpl<T> service;
+	private final ServiceStats stats;
+	private final File dir;
+	private final boolean durable;
+	final int threshold;
+	private final ArrayDeque<Segment> segments=new ArrayDeque<>();
+	private final ArrayDeque<Run> runs=new ArrayDeque<>();
+	// replayed calls of durable segments not reported yet, in the order of the records
+	private final ArrayDeque<Replayed> inFlight=new ArrayDeque<>();
+	private final ByteBufferHolder scratch=new ByteBufferHolder(1024);
+	private final boolean[] fb=new boolean[1];
+	private byte[] record=new byte[1024];
+	private Segment writer;
+	// segment and offset past the last record read
+	private Segment lastSegment;
+	private int lastEnd;
+	private long nextSeq;
+	// calls in the segments, guarded by this, read without it as a hint
+	private volatile int pending;
+
+	SpillQueue(ServiceImpl<T> service, ServiceStats stats, File dir, boolean durable, int threshold, Workload trackingWorkload) throws IOException {
+		this.service=service;
+		this.stats=stats;
+		this.threshold=threshold;
+		this.durable=durable;
+		if (dir!=null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can not create spill directory "+dir);
+		if (dir==null || !durable) {
+			// nothing to replay, and nothing of others to delete
+			dir=(dir==null?Files.createTempDirectory("spill"):Files.createTempDirectory(dir.toPath(), "spill")).toFile();
+			dir.deleteOnExit();
+		}
+		this.dir=dir;
+		File[] files=durable?dir.listFiles((d,name) -> SEGMENT_NAME.matcher(name).matches()):new File[0];
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!isSegment(f))
+				continue;
+			long seq=Long.parseLong(f.getName().substring(0, f.getName().length()-4));
+			nextSeq=Math.max(nextSeq, seq+1);
+			Segment s=openSegment(f);
+			int count=0;
+			s.writePos=s.readPos;
+			for (int len;s.writePos+4<=SEGMENT_BYTES && (len=s.buf.getInt(s.writePos))>0;s.writePos+=4+len)
+				++count;
+			if (count==0) {
+				release(s);
+				continue;
+			}
+			segments.add(s);
+			runs.add(new Run(trackingWorkload, NO_CALLBACK, count));
+			for (int i=0;i<count;++i)
+				trackingWorkload.callSubmitted();
+			stats.submitted.add(count);
+			stats.spilled.add(count);
+			pending+=count;
+		}
+	}
+
+	/**
+	 * @return true, if the file is a segment written by a SpillQueue
+	 */
+	private static boolean isSegment(File f) {
+		if (f.length()!=SEGMENT_BYTES)
+			return false;
+		try (RandomAccessFile raf=new RandomAccessFile(f, "r")) {
+			return raf.readInt()==MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private Segment openSegment(File f) throws IOException {
+		try (RandomAccessFile raf=new RandomAccessFile(f, "rw")) {
+			// the mapping stays valid once the channel is closed
+			MappedByteBuffer buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+			if (buf.getInt(0)!=MAGIC) {
+				buf.putInt(0, MAGIC);
+				buf.putLong(8, HEADER_BYTES);
+			}
+			Segment s=new Segment(f, buf);
+			s.readPos=(int)buf.getLong(8);
+			return s;
+		}
+	}
+
+	boolean hasPending() {
+		return pending>0;
+	}
+
+	/**
+	 * Spills the call, if calls are spilled already, or the queue is at the threshold
+	 * @return false, if the call is to be queued as usual
+	 */
+	synchronized boolean offer(Workload w, CompletionCallback<T> callback, Object[] args) {
+		if (pending==0 && service.getQueueLength()<threshold)
+			return false;
+		try {
+			if (!append(args))
+				return false;
+		} catch (IOException e) {
+			// args EncodingType can not encode stay on the heap
+			return false;
+		}
+		Run last=runs.peekLast();
+		if (last!=null && last.workload==w && last.callback==callback)
+			++last.count;
+		else
+			runs.add(new Run(w, callback, 1));
+		w.callSubmitted();
+		stats.submitted.increment();
+		stats.spilled.increment();
+		++pending;
+		return true;
+	}
+
+	private boolean append(Object[] args) throws IOException {
+		scratch.clear();
+		EncodingType.encodeObject(scratch, args==null?0:args.length, false);
+		if (args!=null) {
+			for (Object arg : args)
+				EncodingType.encodeObject(scratch, arg, false);
+		}
+		int len=scratch.position();
+		if (HEADER_BYTES+4+len+4>SEGMENT_BYTES)
+			return false;
+		if (writer==null || writer.writePos+4+len+4>SEGMENT_BYTES) {
+			File f=new File(dir, String.format("%016d.seg", nextSeq++));
+			if (!durable)
+				f.deleteOnExit();
+			writer=openSegment(f);
+			segments.add(writer);
+		}
+		ByteBuffer dup=writer.buf.duplicate();
+		dup.position(writer.writePos+4);
+		dup.put(scratch.array(), 0, len);
+		// the end mark goes first, a segment written from the start again may hold older records past the new one
+		writer.buf.putInt(writer.writePos+4+len, 0);
+		writer.buf.putInt(writer.writePos, len);
+		writer.writePos+=4+len;
+		return true;
+	}
+
+	/**
+	 * Moves spilled calls back to the queue, up to the threshold
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void refill() throws InterruptedException {
+		int n=Math.min(pending, threshold-service.getQueueLength());
+		for (int i=0;i<n;++i) {
+			Run run=runs.peekFirst();
+			if (--run.count==0)
+				runs.pollFirst();
+			--pending;
+			stats.unspilled.increment();
+			CompletionCallback<T> callback=(CompletionCallback<T>)run.callback;
+			Object[] args;
+			try {
+				args=next();
+			} catch (IOException | RuntimeException e) {
+				// a corrupt record fails its call alone
+				stats.errored.increment();
+				service.newRequest(run.workload, track(callback), null, null).errored(e);
+				continue;
+			}
+			service.enqueueNoLimit(service.newRequest(run.workload, track(callback), args, null));
+		}
+		recycle();
+	}
+
+	/**
+	 * @return the callback of the call of the record read last, acknowledging the record once the call is reported
+	 */
+	private CompletionCallback<T> track(CompletionCallback<T> callback) {
+		if (!durable)
+			return callback;
+		Replayed r=new Replayed(callback, lastSegment, lastEnd);
+		inFlight.add(r);
+		return r;
+	}
+
+	/**
+	 * Moves the offsets of the segments past the records of the reported calls, up to the first call not reported yet
+	 */
+	private synchronized void ack(Replayed r) {
+		r.done=true;
+		for (Replayed head; (head=inFlight.peekFirst())!=null && head.done;) {
+			inFlight.pollFirst();
+			Segment s=head.segment;
+			Replayed next=inFlight.peekFirst();
+			if (s.exhausted && (next==null || next.segment!=s))
+				release(s);
+			else
+				s.buf.putLong(8, head.end);
+		}
+		recycle();
+	}
+
+	/**
+	 * Once every spilled call is replayed and reported, writes the last segment from the start again, and deletes the others
+	 */
+	private void recycle() {
+		if (pending!=0 || writer==null || !inFlight.isEmpty())
+			return;
+		while (segments.peekFirst()!=writer) {
+			Segment s=segments.pollFirst();
+			s.exhausted=true;
+			release(s);
+		}
+		writer.readPos=writer.writePos=HEADER_BYTES;
+		writer.buf.putInt(HEADER_BYTES, 0);
+		writer.buf.putLong(8, HEADER_BYTES);
+	}
+
+	/**
+	 * Unmaps and deletes a segment no longer read or written. The buffer must not be touched afterwards.
+	 */
+	private static void release(Segment s) {
+		unmap(s.buf);
+		s.file.delete();
+	}
+
+	/**
+	 * Unmaps the buffer right away, rather than once it is garbage collected
+	 */
+	private static void unmap(MappedByteBuffer buf) {
+		try {
+			if (INVOKE_CLEANER!=null) {
+				INVOKE_CLEANER.invoke(Utils.getUnsafe(), buf);
+				return;
+			}
+			// java 8
+			Method cleaner=buf.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Object c=cleaner.invoke(buf);
+			if (c!=null)
+				c.getClass().getMethod("clean").invoke(c);
+		} catch (Throwable tt) {
+			// left to the GC
+		}
+	}
+
+	private static Method findInvokeCleaner() {
+		try {
+			Object unsafe=Utils.getUnsafe();
+			return unsafe==null?null:unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Throwable tt) {
+			return null;
+		}
+	}
+
+	private Object[] next() throws IOException {
+		for (;;) {
+			Segment s=segments.peekFirst();
+			if (s.readPos<s.writePos) {
+				int len=s.buf.getInt(s.readPos);
+				// decoding needs a heap buffer
+				if (record.length<len)
+					record=new byte[Math.max(len, 2*record.length)];
+				ByteBuffer dup=s.buf.duplicate();
+				dup.position(s.readPos+4);
+				dup.get(record, 0, len);
+				s.readPos+=4+len;
+				lastSegment=s;
+				lastEnd=s.readPos;
+				ByteBuffer bb=ByteBuffer.wrap(record, 0, len);
+				int n=(Integer)EncodingType.decodeObject(bb, fb);
+				Object[] args=new Object[n];
+				for (int i=0;i<n;++i)
+					args[i]=EncodingType.decodeObject(bb, fb);
+				return args;
+			}
+			if (s==writer)
+				throw new IllegalStateException("Spill segment "+s.file+" has no more records");
+			segments.pollFirst();
+			s.exhausted=true;
+			// a durable segment goes once the calls replayed from it are reported, see ack()
+			Replayed last=inFlight.peekLast();
+			if (last==null || last.segment!=s)
+				release(s);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.async.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import arutils.util.Utils;
+
+/**
+ * The library targets 1.8, so virtual threads (JDK 21+) are reached via reflection.
+ */
+final class VirtualThreads {
+	private final static ThreadFactory factory=loadFactory();
+
+	private VirtualThreads() {}
+
+	static boolean isSupported() {
+		return factory!=null;
+	}
+
+	/**
+	 * @return a thread per task executor of virtual threads, or null if the running JVM has no virtual threads
+	 */
+	static ExecutorService newExecutor() {
+		if (factory==null)
+			return null;
+		try {
+			return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		} catch (InvocationTargetException e) {
+			Utils.logerr("Failed to create virtual thread executor: "+e.getCause());
+		} catch (Throwable t) {
+			Utils.logerr("Failed to create virtual thread executor: "+t);
+		}
+		return null;
+	}
+
+	private static ThreadFactory loadFactory() {
+		try {
+			Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass=Class.forName("java.lang.Thread$Builder");
+			builder=builderClass.getMethod("name", String.class, long.class).invoke(builder, "async-engine-vthread-", 1L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Throwable t) {
+			// pre JDK 21, or preview features are not enabled
+			return null;
+		}
+	}
+}
@@ -17,113 +17,127 @@
 
 package arutils.async.impl;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import arutils.async.CompletionCallback;
+import arutils.async.Deadline;
 import arutils.async.Result;
 import arutils.async.Workload;
 
+/**
+ * Calls are counted by striped adders, so completing workers do not contend on a shared lock or counter.
+ * Completion is only checked once last() has been called, and signalled once, on the transition to completed==submitted.
+ */
 public class WorkloadImpl implements Workload {
-	Lock completionLock=new ReentrantLock();
-	Condition completionCond=completionLock.newCondition();
-	AtomicLong numOfCallsSubmitted=new AtomicLong();
-	long numOfCallsCompleted=0;
-	boolean isDone=false;
+	final LongAdder numOfCallsSubmitted=new LongAdder();
+	final LongAdder numOfCallsCompleted=new LongAdder();
+	volatile boolean isDone=false;
+	volatile CompletableFuture<Long> completion=new CompletableFuture<>();
 	private AsyncEngineImpl engine;
+	final private Priority priority;
 	
 	WorkloadImpl(AsyncEngineImpl engine) {
+		this(engine, Priority.NORMAL);
+	}
+
+	WorkloadImpl(AsyncEngineImpl engine, Priority priority) {
 		this.engine=engine;
+		this.priority=priority==null?Priority.NORMAL:priority;
+	}
+
+	@Override
+	public Priority getPriority() {
+		return priority;
 	}
 	
 	@Override
 	public void callCompleted() {
-		completionLock.lock();
-		try {
-			++numOfCallsCompleted;
-//			System.out.println("Completed  : "+numOfCallsCompleted);
-			completionCond.signalAll();
-		} finally {
-			completionLock.unlock();
-		}
+		numOfCallsCompleted.increment();
+		if (isDone)
+			checkCompletion();
+	}
+
+	@Override
+	public void callsCompleted(int n) {
+		numOfCallsCompleted.add(n);
+		if (isDone)
+			checkCompletion();
+	}
+
+	/**
+	 * Takes back a submitted call, once it is re-submitted as another call of the workload, e.g. a delayed call getting due
+	 */
+	void callWithdrawn() {
+		numOfCallsSubmitted.decrement();
+		if (isDone)
+			checkCompletion();
+	}
+
+	private void checkCompletion() {
+		// completed never runs ahead of submitted, so reading it first gives a consistent answer
+		long completed=numOfCallsCompleted.sum();
+		if (completed>=numOfCallsSubmitted.sum())
+			completion.complete(completed);
 	}
 	
 	@Override
 	public Future<Long> completeLast() {
+		final CompletableFuture<Long> f=completion;
 		return new Future<Long>() {
 			public boolean cancel(boolean mayInterruptIfRunning) {return false;}
 			public boolean isCancelled() {return false;}
 			public boolean isDone() {
-				completionLock.lock();
-				try {
-					return numOfCallsCompleted==numOfCallsSubmitted.get();
-				} finally {
-					completionLock.unlock();
-				}
+				return f.isDone();
 			}
 			public Long get() throws InterruptedException, ExecutionException {
-				completionLock.lock();
-				try {
-					while ( (!isDone) || numOfCallsCompleted<numOfCallsSubmitted.get()) {
-//						System.out.println("Awaiting numOfCallsCompleted="+numOfCallsCompleted+" numOfCallsSubmitted="+numOfCallsSubmitted);
-						completionCond.await();
-					}
-					return numOfCallsCompleted;
-				} finally {
-					completionLock.unlock();
-				}
+				return f.get();
 			}
 			public Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-				completionLock.lock();
 				try {
-					while ( (!isDone) || numOfCallsCompleted<numOfCallsSubmitted.get()) {
-						boolean signalled=completionCond.await(timeout,unit);
-						if (!signalled) throw new TimeoutException(timeout+" "+unit+" elapsed");
-					}
-					return numOfCallsCompleted;
-				} finally {
-					completionLock.unlock();
+					return f.get(timeout, unit);
+				} catch (TimeoutException e) {
+					throw new TimeoutException(timeout+" "+unit+" elapsed");
 				}
 			}			
 		};
 	}
 
+	@Override
+	public CompletableFuture<Long> completeLastAsync() {
+		return completion.thenApply(Function.identity());
+	}
+
+	@Override
+	public void onComplete(Runnable r) {
+		completion.thenRun(r);
+	}
+
 	@Override
 	public void callSubmitted() {
-		numOfCallsSubmitted.incrementAndGet();
+		numOfCallsSubmitted.increment();
 	}
 
 	@Override
 	public long last() {
-		completionLock.lock();
-		try {
-			isDone=true;
-//			System.out.println("Done Signal");
-			completionCond.signalAll();
-			return numOfCallsSubmitted.get();
-		} finally {
-			completionLock.unlock();
-		}
+		isDone=true;
+		checkCompletion();
+		return numOfCallsSubmitted.sum();
 	}
 
 
 	@Override
 	public void reset() {
-		completionLock.lock();
-		try {
-			isDone=false;
-			numOfCallsSubmitted.set(0L);
-			numOfCallsCompleted=0L;
-		} finally {
-			completionLock.unlock();
-		}
-		
+		isDone=false;
+		numOfCallsSubmitted.reset();
+		numOfCallsCompleted.reset();
+		if (completion.isDone())
+			completion=new CompletableFuture<>();
 	}
 
 	@Override
@@ -131,11 +145,21 @@ public class WorkloadImpl implements Workload {
 		return engine.<T>getService(serviceName).call(this, args);
 	}
 
+	@Override
+	public <T> Result<T> call(Deadline deadline, String serviceName, Object... args) throws InterruptedException {
+		return engine.<T>getService(serviceName).call(this, deadline, args);
+	}
+
 	@Override
 	public <T> void callWithCallback(String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException {
 		engine.<T>getService(serviceName).callWithCallback(this,callback,args);
 	}
 
+	@Override
+	public <T> void callWithCallback(Deadline deadline, String serviceName, CompletionCallback<T> callback, Object... args) throws InterruptedException {
+		engine.<T>getService(serviceName).callWithCallback(this,deadline,callback,args);
+	}
+
 	@Override
 	public <T> Result<T> callNoLimit(String serviceName, Object... args) throws InterruptedException {
 		return engine.<T>getService(serviceName).callNoLimit(this, args);
@@ -148,16 +172,11 @@ public class WorkloadImpl implements Workload {
 
 	@Override
 	public long getNumberOfCompletedCalls() {
-		completionLock.lock();
-		try {
-			return numOfCallsCompleted;
-		} finally {
-			completionLock.unlock();
-		}
+		return numOfCallsCompleted.sum();
 	}
 	@Override
 	public long getNumberOfSubmittedCalls() {
-		return numOfCallsSubmitted.get();
+		return numOfCallsSubmitted.sum();
 	}
 
 
@@ -26,6 +26,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import arutils.db.impl.DBImpl;
 
@@ -40,6 +41,19 @@ public abstract class DB {
 		MYSQL,	DRIZZLE_MYSQL, DRIZZLE, TDS, ORACLE, POSTGRESS, UNKNOWN
 	}
 	
+	/**
+	 * Property for {@link #create(String, String, String, Properties)}, see {@link #setMinIdle(int)}
+	 */
+	public static final String POOL_MIN_IDLE="arutils.db.pool.minIdle";
+	/**
+	 * Property for {@link #create(String, String, String, Properties)}, milliseconds, see {@link #setMaxIdleTime(TimeUnit, long)}
+	 */
+	public static final String POOL_MAX_IDLE_TIME="arutils.db.pool.maxIdleTimeMS";
+	/**
+	 * Property for {@link #create(String, String, String, Properties)}, milliseconds, see {@link #setKeepaliveInterval(TimeUnit, long)}
+	 */
+	public static final String POOL_KEEPALIVE_INTERVAL="arutils.db.pool.keepaliveIntervalMS";
+	
 	
 	public abstract DB clone();
 
@@ -61,6 +75,16 @@ public abstract class DB {
 	 * @throws InterruptedException
 	 */
 	public List<Object[]> select(String sql) throws SQLException, InterruptedException {return select(sql,false);}
+	/**
+	 * Streams rows of a select instead of collecting them, the driver is set up not to buffer the whole result either: 
+	 * MySQL streams row by row, postgres fetches through a cursor in a transaction, others fetch in chunks.
+	 * The stream holds a connection taken from the pool until it is read to the end or closed, so use it in 
+	 * try-with-resources. Rows are in {@link #select(String, boolean, Object...)} format, SQL errors while reading surface as 
+	 * RuntimeException with the SQLException as the cause.
+	 * Closing a MySQL stream before its end cancels the query (KILL QUERY), as the driver would read the rest of the rows otherwise,
+	 * the connection goes back to the pool.
+	 */
+	public abstract Stream<Object[]> stream(String sql, Object... args) throws SQLException, InterruptedException;
 	public abstract List<Object> selectFirstColumn(String sql, boolean cache, Object... args) throws SQLException, InterruptedException;
 	public abstract List<Map<String, Object>> selectLabelMap(String sql, boolean cache, Object... args) throws SQLException, InterruptedException;
 	public abstract void select(String sql, boolean cache, ArrayRowHandler rh, Object... args) throws SQLException, InterruptedException;
@@ -131,6 +155,28 @@ public abstract class DB {
 	public abstract void setMaxConnections(int max);
 
 	
+	/**
+	 * @param autoCommit - metrics of the autocommit or the transactional pool
+	 */
+	public abstract PoolMetrics getPoolMetrics(boolean autoCommit);
+	
+	public abstract int getMinIdle();
+	/**
+	 * Number of open, initialized connections each pool (autocommit and transactional) keeps idle. 
+	 * Connections are opened in background, when set through {@link #POOL_MIN_IDLE} the pools start to fill right at create.
+	 */
+	public abstract void setMinIdle(int minIdle);
+	public abstract long getMaxIdleTimeMS();
+	/**
+	 * Idle connections above min idle are closed after being unused that long, 0 - never.
+	 */
+	public abstract void setMaxIdleTime(TimeUnit tu, long time);
+	public abstract long getKeepaliveIntervalMS();
+	/**
+	 * Idle connections are validated in background that often, dead ones are reopened, 0 - never.
+	 */
+	public abstract void setKeepaliveInterval(TimeUnit tu, long interval);
+	
 	public abstract long getRetryTimeoutMS();
 	public abstract void setRetryTimeout(TimeUnit tu, long timeout);
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.db;
+
+import arutils.async.Histogram;
+
+/**
+ * Point in time snapshot of a {@link DB} connection pool, either the autocommit or the transactional one.
+ * Counters are cumulative since the DB creation, rates are differences of two snapshots.
+ */
+public interface PoolMetrics {
+	/**
+	 * @return Number of connections taken from the pool
+	 */
+	long getBorrowed();
+	/**
+	 * @return Number of overborrowed connections opened, beyond the max connections
+	 */
+	long getOverborrowed();
+	/**
+	 * @return Number of borrows which ran into the stall penalty and got reported
+	 */
+	long getStalls();
+	/**
+	 * @return Number of JDBC connections opened
+	 */
+	long getOpened();
+	/**
+	 * @return Number of JDBC connections closed
+	 */
+	long getClosed();
+	long getStatementCacheHits();
+	long getStatementCacheMisses();
+	/**
+	 * @return hits/(hits+misses) of the cached PreparedStatements, 0 if none
+	 */
+	double getStatementCacheHitRatio();
+	
+	/**
+	 * @return Connections borrowed right now, overborrowed included
+	 */
+	int getInUse();
+	int getIdle();
+	/**
+	 * @return Overborrowed connections borrowed right now
+	 */
+	int getOverborrowedInUse();
+	/**
+	 * @return Pooled connections, idle or in use, overborrowed not included
+	 */
+	int getConnections();
+	/**
+	 * @return Threads parked waiting for a connection
+	 */
+	int getWaiting();
+	
+	/**
+	 * @return Time spent in taking a connection, nanoseconds. Borrows served from idle connections count as 0
+	 */
+	Histogram getBorrowWaitNanos();
+	/**
+	 * @return Time from taking a connection to its return, nanoseconds
+	 */
+	Histogram getHoldNanos();
+}
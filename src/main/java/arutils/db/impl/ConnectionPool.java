@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.db.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Idle connections of one {@link DBImpl.CommitContext}, borrowed and returned without a lock.
+ * 
+ * A borrow first tries the connection the calling thread returned last (its affinity slot), then
+ * the shared LIFO stack of idle connections. Every idle connection is on the shared stack, the
+ * affinity slot is only a hint: whoever flips the connection's state from IDLE to IN_USE owns it,
+ * so the stack is allowed to hold connections already taken through an affinity slot, those are
+ * just dropped when popped and pushed again on their next return.
+ * 
+ * A thread that finds nothing queues up as a {@link Waiter}; returns hand the connection directly
+ * to the oldest waiter and unpark only that one.
+ */
+final class ConnectionPool {
+	final static int IDLE=0;
+	final static int IN_USE=1;
+	final static int CLOSED=2;
+	
+	final private static AtomicIntegerFieldUpdater<ConnectionWrapImpl> STATE=AtomicIntegerFieldUpdater.newUpdater(ConnectionWrapImpl.class, "poolState");
+	final private static AtomicIntegerFieldUpdater<ConnectionWrapImpl> STACKED=AtomicIntegerFieldUpdater.newUpdater(ConnectionWrapImpl.class, "poolStacked");
+	final private static AtomicReferenceFieldUpdater<Waiter,Object> HANDED=AtomicReferenceFieldUpdater.newUpdater(Waiter.class, Object.class, "handed");
+	final private static Object CANCELED=new Object();
+	
+	final static class Waiter {
+		final Thread thread=Thread.currentThread();
+		volatile Object handed;
+	}
+	
+	final static class Affinity {
+		WeakReference<ConnectionWrapImpl> ref;
+	}
+	
+	final private ConcurrentLinkedDeque<ConnectionWrapImpl> stack=new ConcurrentLinkedDeque<>();
+	final private ConcurrentLinkedQueue<Waiter> waiters=new ConcurrentLinkedQueue<>();
+	// connections in the IDLE state, the stack may hold IN_USE ones as well
+	final private LongAdder idle=new LongAdder();
+	final private ThreadLocal<Affinity> affinity=new ThreadLocal<Affinity>() {
+		protected Affinity initialValue() {
+			return new Affinity();
+		}
+	};
+	
+	/**
+	 * @return an idle connection, now owned by the caller, or null
+	 */
+	ConnectionWrapImpl poll() {
+		WeakReference<ConnectionWrapImpl> ref=affinity.get().ref;
+		ConnectionWrapImpl cw=ref==null?null:ref.get();
+		if (cw!=null && STATE.compareAndSet(cw, IDLE, IN_USE)) {
+			idle.decrement();
+			return cw;
+		}
+		while ((cw=stack.pollFirst())!=null) {
+			cw.poolStacked=0;
+			if (STATE.compareAndSet(cw, IDLE, IN_USE)) {
+				idle.decrement();
+				return cw;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Waits up to nanos for a returned connection.
+	 * @return a connection owned by the caller, or null on timeout
+	 */
+	ConnectionWrapImpl await(long nanos) throws InterruptedException {
+		Waiter w=new Waiter();
+		waiters.add(w);
+		// a return may have missed us, look again now that we are queued
+		ConnectionWrapImpl cw=poll();
+		if (cw!=null) {
+			if (cancel(w))
+				return cw;
+			release(cw);
+			return (ConnectionWrapImpl)w.handed;
+		}
+		long deadline=System.nanoTime()+nanos;
+		for (;;) {
+			Object h=w.handed;
+			if (h!=null) 
+				return (ConnectionWrapImpl)h;
+			if (Thread.interrupted()) {
+				if (!cancel(w))
+					release((ConnectionWrapImpl)w.handed);
+				throw new InterruptedException();
+			}
+			long left=deadline-System.nanoTime();
+			if (left<=0) 
+				return cancel(w)?null:(ConnectionWrapImpl)w.handed;
+			LockSupport.parkNanos(this, left);
+		}
+	}
+	
+	private boolean cancel(Waiter w) {
+		if (HANDED.compareAndSet(w, null, CANCELED)) {
+			waiters.remove(w);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns a connection owned by the caller, handing it to the oldest waiter if there is one.
+	 */
+	void release(ConnectionWrapImpl cw) {
+		Affinity a=affinity.get();
+		if (a.ref==null || a.ref.get()!=cw)
+			a.ref=new WeakReference<>(cw);
+		cw.idleSince=System.currentTimeMillis();
+		putBack(cw);
+	}
+	
+	/**
+	 * Same as {@link #release(ConnectionWrapImpl)}, but leaves the affinity slot and idle time alone,
+	 * for connections claimed by pool maintenance rather than used.
+	 */
+	void putBack(ConnectionWrapImpl cw) {
+		if (handOff(cw))
+			return;
+		setIdle(cw);
+		// a waiter queued after handOff() looked, and possibly polled before the push
+		while (!waiters.isEmpty() && (cw=poll())!=null) {
+			if (!handOff(cw))
+				setIdle(cw);
+		}
+	}
+	
+	/**
+	 * Claims a particular idle connection, see {@link #idleConnections()}.
+	 */
+	boolean claim(ConnectionWrapImpl cw) {
+		if (!STATE.compareAndSet(cw, IDLE, IN_USE))
+			return false;
+		idle.decrement();
+		return true;
+	}
+	
+	/**
+	 * Drops a claimed connection from the pool for good.
+	 */
+	void discard(ConnectionWrapImpl cw) {
+		STATE.set(cw, CLOSED);
+		stack.remove(cw);
+	}
+	
+	/**
+	 * @return a weakly consistent view of the idle connections, most recently returned first
+	 */
+	Iterable<ConnectionWrapImpl> idleConnections() {
+		return stack;
+	}
+	
+	private boolean handOff(ConnectionWrapImpl cw) {
+		for (Waiter w; (w=waiters.poll())!=null;) {
+			if (HANDED.compareAndSet(w, null, cw)) {
+				LockSupport.unpark(w.thread);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void setIdle(ConnectionWrapImpl cw) {
+		// counted first, so a concurrent poll() never takes the count below zero
+		idle.increment();
+		STATE.set(cw, IDLE);
+		push(cw);
+	}
+	
+	private void push(ConnectionWrapImpl cw) {
+		if (STACKED.compareAndSet(cw, 0, 1))
+			stack.offerFirst(cw);
+	}
+	
+	/**
+	 * Takes all idle connections out of the pool for closing.
+	 */
+	List<ConnectionWrapImpl> drain() {
+		List<ConnectionWrapImpl> ret=new ArrayList<>();
+		for (ConnectionWrapImpl cw; (cw=stack.pollFirst())!=null;) {
+			cw.poolStacked=0;
+			if (STATE.compareAndSet(cw, IDLE, CLOSED)) {
+				idle.decrement();
+				ret.add(cw);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return number of idle connections, O(1) unlike the size of the stack
+	 */
+	int idle() {
+		return idle.intValue();
+	}
+	
+	int waiting() {
+		return waiters.size();
+	}
+}
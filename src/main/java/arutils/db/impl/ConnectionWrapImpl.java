@@ -22,25 +22,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
-import java.math.BigDecimal;
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -65,13 +65,21 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 	final private boolean autoCommit;
 	private Connection con;
 	private Object conId;
-	private static final BigDecimal BIG_LONG_MAX = new BigDecimal(Long.MAX_VALUE);
-	private static final BigDecimal BIG_LONG_MIN = new BigDecimal(Long.MIN_VALUE);
 	LRUCache<String, PreparedStatement> psCache, psGenCache;
 	LRUCache<String, BulkRewrite> bulkRewriteCache;
+	/**
+	 * row decoders of the cached statements, they go away together 
+	 */
+	private Map<PreparedStatement, RowDecoder> rowDecoders=new WeakHashMap<>();
 	private long stickyVersion=0;
 	private TreeMap<Long, StickyBlock> knownInitBlocks=new TreeMap<>();
 	private Set<StatementBlock<Void>> beforeCommitSet=new LinkedHashSet<StatementBlock<Void>>();
+	volatile int poolState=ConnectionPool.IN_USE;
+	volatile int poolStacked;
+	boolean overborrowed;
+	long idleSince=System.currentTimeMillis();
+	long lastValidated;
+	long borrowedAt;
 
 
 	ConnectionWrapImpl(CommitContext commitContext, boolean autoCommit) {
@@ -143,6 +151,7 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 	public void close() throws InterruptedException  {
 		closeStatements();
 		closeSticky();
+		if (con!=null) cx.stats.closed.increment();
 		close(con);
 		con=null;
 	}
@@ -152,6 +161,7 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 		psCache.clear();
 		for (PreparedStatement ps : psGenCache.values()) close(ps);
 		psGenCache.clear();
+		rowDecoders.clear();
 	}
 
 	/* (non-Javadoc)
@@ -272,15 +282,11 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 				applyArgs(ps, args);
 				rs = ps.executeQuery();
 			}
-			ResultSetMetaData rm = rs.getMetaData();
-			int numberOfColumns = rm.getColumnCount();
+			RowDecoder decoder=getRowDecoder(ps, cache, rs.getMetaData());
 			List<Object[]> result = new ArrayList<Object[]>();
 			while (rs.next()) {
 				if (Thread.interrupted()) throw new InterruptedException();
-				Object[] row = new Object[numberOfColumns];
-				for (int i = 0; i < numberOfColumns; i++)
-					row[i] = normalizeGetObject(rm, rs, i + 1);
-				result.add(row);
+				result.add(decoder.decode(rs));
 			}
 			success=true;
 			return result;
@@ -301,6 +307,129 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 
 
 
+	final static int STREAM_FETCH_SIZE=1000;
+	
+	/**
+	 * Forward only, read only result set of {@link DB#stream(String, Object...)}, it owns the connection 
+	 * till exhausted or closed, then hands it back to the pool.
+	 */
+	final class Cursor implements Iterator<Object[]>, AutoCloseable {
+		final private String sql;
+		final private Object[] args;
+		final private Object ticket;
+		private PreparedStatement ps;
+		private ResultSet rs;
+		private RowDecoder decoder;
+		private Object[] next;
+		private boolean exhausted;
+		private boolean closed;
+		private SQLException sex;
+		
+		Cursor(String sql, Object[] args) {
+			this.sql=sql;
+			this.args=args;
+			this.ticket=db.profilerStart(ConnectionWrapImpl.this, sql, args);
+		}
+		
+		void open() throws SQLException, InterruptedException {
+			try {
+				ps=getConnection(ticket).prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				switch (db.getDialect()) {
+					case MYSQL:
+						// Connector/J streams row by row only with this magic value
+						ps.setFetchSize(Integer.MIN_VALUE);
+						break;
+					default:
+						// postgres fetches through a cursor, as the connection is not in autocommit
+						ps.setFetchSize(STREAM_FETCH_SIZE);
+				}
+				applyArgs(ps, args);
+				rs=ps.executeQuery();
+				decoder=new RowDecoder(rs.getMetaData());
+			} catch (SQLException ex) {
+				ConnectionWrapImpl.close(rs);
+				ConnectionWrapImpl.close(ps);
+				rs=null;
+				ps=null;
+				db.profilerEnd(ticket,false,ex);
+				throwExtendedSQLException(sql, false, ex, args);
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (next==null && !exhausted && !closed) {
+				try {
+					if (Thread.interrupted()) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedException();
+					}
+					if (rs.next()) {
+						next=decoder.decode(rs);
+					} else {
+						exhausted=true;
+						close();
+					}
+				} catch (SQLException ex) {
+					sex=ex;
+					close();
+					throw new RuntimeException(new ExtendedSQLException(conId, ex, sql, false, args));
+				} catch (InterruptedException ex) {
+					close();
+					throw new RuntimeException(ex);
+				}
+			}
+			return next!=null;
+		}
+		
+		@Override
+		public Object[] next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Object[] ret=next;
+			next=null;
+			return ret;
+		}
+		
+		/**
+		 * Frees the statement and returns the connection to the pool. A MySQL streaming result set left half read 
+		 * is read through to the end by the driver on close, so the query is cancelled first.
+		 */
+		@Override
+		public void close() {
+			if (closed) return;
+			closed=true;
+			next=null;
+			boolean interrupted=Thread.interrupted();
+			try {
+				if (!exhausted && rs!=null && db.getDialect()==Dialect.MYSQL) {
+					// KILL QUERY, so the server stops sending what the driver would read through on close
+					try {ps.cancel();} catch (SQLException e) {}
+				}
+				ConnectionWrapImpl.close(rs);
+				ConnectionWrapImpl.close(ps);
+				if (!autoCommit) rollback();
+			} catch (InterruptedException e) {
+				interrupted=true;
+			} finally {
+				rs=null;
+				ps=null;
+				db.profilerEnd(ticket,sex==null,sex);
+				try {
+					cx.release(ConnectionWrapImpl.this);
+				} catch (InterruptedException e) {
+					interrupted=true;
+				}
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	Cursor openCursor(String sql, Object... args) throws SQLException, InterruptedException {
+		Cursor c=new Cursor(sql, args);
+		c.open();
+		return c;
+	}
+
 	/* (non-Javadoc)
 	 * @see arutils.util.db.impl.CW#selectLabelMap(java.lang.String, boolean, java.lang.Object)
 	 */
@@ -323,14 +452,14 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 				applyArgs(ps, args);
 				rs = ps.executeQuery();
 			}
-			ResultSetMetaData rm = rs.getMetaData();
-			int numberOfColumns = rm.getColumnCount();
+			RowDecoder decoder=getRowDecoder(ps, cache, rs.getMetaData());
+			int numberOfColumns = decoder.getColumnCount();
 			List<Map<String,Object>> result = new ArrayList<>();
 			while (rs.next()) {
 				if (Thread.interrupted()) throw new InterruptedException();
 				Map<String,Object> row = new HashMap<>(numberOfColumns);
-				for (int i = 0; i < numberOfColumns; i++)
-					row.put(rm.getColumnLabel(i+1), normalizeGetObject(rm, rs, i + 1));
+				for (int i = 1; i <= numberOfColumns; i++)
+					row.put(decoder.getLabel(i), decoder.get(rs, i));
 				result.add(row);
 			}
 			success=true;
@@ -371,13 +500,10 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 				rs = ps.executeQuery();
 			}
 			ResultSetMetaData rm = rs.getMetaData();
-			int numberOfColumns = rm.getColumnCount();
+			RowDecoder decoder=getRowDecoder(ps, cache, rm);
 			while (rs.next()) {
 				if (Thread.interrupted()) throw new InterruptedException();
-				Object[] row = new Object[numberOfColumns];
-				for (int i = 0; i < numberOfColumns; i++)
-					row[i] = normalizeGetObject(rm, rs, i + 1);
-				rh.onRow(rm, row);
+				rh.onRow(rm, decoder.decode(rs));
 			}
 			success=true;
 		} catch (SQLException ex) {		
@@ -416,16 +542,14 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 				rs = ps.executeQuery();
 			}
 			ResultSetMetaData rm = rs.getMetaData();
-			int numberOfColumns = rm.getColumnCount();
+			RowDecoder decoder=getRowDecoder(ps, cache, rm);
+			int numberOfColumns = decoder.getColumnCount();
 			Map<String,Integer> labelToPos=new HashMap<String, Integer>();
 			for (int i = 1; i <= numberOfColumns; i++)
-				labelToPos.put(rm.getColumnLabel(i), i);
+				labelToPos.put(decoder.getLabel(i), i);
 			final ResultSet myrs=rs;
 			while (rs.next()) {
 				if (Thread.interrupted()) throw new InterruptedException();
-				Map<String,Object> row = new HashMap<>(numberOfColumns);
-				for (int i = 1; i <= numberOfColumns; i++)
-					row.put(rm.getColumnLabel(i), normalizeGetObject(rm, rs, i));
 				rh.onRow(rm, new Map<String,Object>(){
 					public int size() {return labelToPos.size();}
 					public boolean isEmpty() {return labelToPos.size()==0;}
@@ -433,7 +557,7 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 					public boolean containsValue(Object value) {throw new RuntimeException("Unimplemented");}
 					public Object get(Object key) {
 						try {
-							return normalizeGetObject(rm, myrs,labelToPos.get(key));
+							return decoder.get(myrs,labelToPos.get(key));
 						} catch (SQLException e) {throw new RuntimeException(e);}					
 					}
 					public Object put(String key, Object value) {throw new RuntimeException("Unimplemented");}
@@ -444,7 +568,7 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 					public Collection<Object> values() {
 						List<Object> row = new ArrayList<>(numberOfColumns);
 						for (int i = 1; i <= numberOfColumns; i++)
-							try {row.add(normalizeGetObject(rm, myrs, i));} catch (SQLException e) {throw new RuntimeException(e);}
+							try {row.add(decoder.get(myrs, i));} catch (SQLException e) {throw new RuntimeException(e);}
 						return row;
 					}
 
@@ -455,8 +579,8 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 							String k;
 							Object v;
 							try {
-								k = rm.getColumnLabel(i);
-								v= normalizeGetObject(rm, myrs, i);
+								k = decoder.getLabel(i);
+								v= decoder.get(myrs, i);
 							} catch (SQLException e) {
 								throw new RuntimeException(e);
 							}
@@ -556,11 +680,11 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 				applyArgs(ps, args);
 				rs = ps.executeQuery();
 			}
-			ResultSetMetaData rm = rs.getMetaData();
+			RowDecoder decoder=getRowDecoder(ps, cache, rs.getMetaData());
 			List<Object> result = new ArrayList<Object>();
 			while (rs.next()) {
 				if (Thread.interrupted()) throw new InterruptedException();
-				result.add(normalizeGetObject(rm, rs, 1));
+				result.add(decoder.get(rs, 1));
 			}
 			success=true;
 			return result;
@@ -593,151 +717,55 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 	
 	static Object normalizeGetObject(ResultSetMetaData md, ResultSet rs, int pos) throws SQLException {
 		int type = md.getColumnType(pos);
-		Object obj = null;
-		switch (type) {
-		case Types.CHAR:
-		case Types.VARCHAR:
-		case Types.LONGVARCHAR:
-		case Types.LONGNVARCHAR:
-			String s = rs.getString(pos);
-			if (rs.wasNull())
-				return null;
-			else
-				return s;
-		case Types.DATE:
-			java.sql.Date date = rs.getDate(pos);
-			if (rs.wasNull())
-				return null;
-			else
-				return date;
-		case Types.TIME:
-			java.sql.Time time = rs.getTime(pos);
-			if (rs.wasNull())
-				return null;
-			else
-				return time;
-		case Types.TIMESTAMP:
-		case -101:
-			java.sql.Timestamp timestamp = rs.getTimestamp(pos);
-			if (rs.wasNull())
-				return null;
-			else
-				return timestamp;
-		case Types.CLOB:
-			java.sql.Clob clob = rs.getClob(pos);
-			if (rs.wasNull())
-				return null;
-			else {
-				return clob.getSubString(1, (int) clob.length());
-			}
-		case Types.DOUBLE:
-			double dbl = rs.getDouble(pos);
-			if (rs.wasNull())
-				return null;
-			return dbl;
-		case Types.REAL:
-		case Types.FLOAT:
-			float flt = rs.getFloat(pos);
-			if (rs.wasNull())
-				return null;
-			return flt;
-		case Types.DECIMAL:
-			BigDecimal bd = rs.getBigDecimal(pos);
-			if (rs.wasNull())
-				return null;
-			return bd;
-		case Types.SMALLINT:
-		case Types.TINYINT:
-			short asShort = rs.getShort(pos);
-			if (rs.wasNull())
-				return null;
-			return asShort;
-		case Types.INTEGER:
-/*			int asInt = rs.getInt(pos);
-			if (rs.wasNull())
-				return null;
-			return asInt;
-*/
-		case Types.BIGINT:
-			long asLong = rs.getLong(pos);
-			if (rs.wasNull())
-				return null;
-			return asLong;
-		case Types.NUMERIC:
-			obj = rs.getObject(pos);
-			if (obj == null)
-				return null;
-			if (obj instanceof Integer)
-				return obj;
-			if (obj instanceof Long)
-				return obj;
-			if (obj instanceof Short)
-				return obj;
-			BigDecimal big = rs.getBigDecimal(pos);
-			if (rs.wasNull()) {
-				return null;
-			} else {
-				if (big.scale() > 0 || big.compareTo(BIG_LONG_MAX) > 0 || big.compareTo(BIG_LONG_MIN) < 0) {
-					return big;
-				} else {
-					long it = big.longValue();
-					return it;
-				}
-			}
-		case Types.OTHER:
-			obj = rs.getObject(pos);
-			if (rs.wasNull())
-				return null;
-			else {
-				return obj;
-			}
-
-		case Types.BIT:
-			boolean b = rs.getBoolean(pos);
-			if (rs.wasNull())
-				return null;
-			return b;
-		case Types.BLOB:
-			/*
-			 * Object o=rs.getObject(pos); if (o==null) return null; if (o
-			 * instanceof byte[]) return o; if (o instanceof Blob) { Blob
-			 * bl=(Blob)o; int length=(int)bl.length(); byte[] bs=
-			 * bl.getBytes(1, length); return bs; }
-			 */
-			Blob bl = rs.getBlob(pos);
-			if (rs.wasNull())
-				return null;
-			int length = (int) bl.length();
-			byte[] bs = bl.getBytes(1, length);
-			return bs;
-		case Types.BINARY:
-		case Types.VARBINARY:
-		case Types.LONGVARBINARY:
-			Object o = rs.getObject(pos);
-			if (o == null || rs.wasNull())
-				return null;
-			if (o instanceof byte[])
-				return o;
-			if (o instanceof Blob) {
-				bl = (Blob) o;
-				length = (int) bl.length();
-				bs = bl.getBytes(1, length);
-				return bs;
-			}
-			return o;
-		case Types.NULL:
-			return rs.getObject(pos);
-		default:
+		RowDecoder.ColumnReader r=RowDecoder.reader(type);
+		if (r==null)
 			throw new RuntimeException("Not supported SQL Type " + type
 					+ " for field " + md.getColumnName(pos));
-		}
-
+		return r.read(rs, pos);
 	}
 
 	private static AtomicLong cnt=new AtomicLong();
+	final boolean isOpen() {
+		return con!=null;
+	}
+	
+	/**
+	 * Opens the JDBC connection ahead of first use, including init statements.
+	 */
+	void open() throws SQLException, InterruptedException {
+		Object ticket=db.profilerStart(this, "connect");
+		boolean success=false;
+		SQLException sex=null;
+		try {
+			getConnection(ticket);
+			success=true;
+		} catch (SQLException ex) {
+			sex=ex;
+			close();
+			throw sex;
+		} finally {
+			db.profilerEnd(ticket,success,sex);
+		}
+	}
+	
+	/**
+	 * Checks an open connection is still alive, which also serves as keepalive. Dead connections are closed.
+	 * @return true if alive
+	 */
+	boolean validate(int timeoutSeconds) throws InterruptedException {
+		if (con==null) return false;
+		try {
+			if (con.isValid(timeoutSeconds)) 
+				return true;
+		} catch (SQLException e) {}
+		close();
+		return false;
+	}
+	
 	private Connection getConnection(Object ticket) throws SQLException, InterruptedException {
 		if (con == null) {
 			con = java.sql.DriverManager.getConnection(db.getUrl(), db.getProperties());
+			cx.stats.opened.increment();
 			setUpDrizzle();
 			con.setAutoCommit(true);
 			//con.setTransactionIsolation(db.getTransactionIsolation());
@@ -948,10 +976,28 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 	}
 
 	
+	/**
+	 * @param ps - null for plain statements
+	 */
+	private RowDecoder getRowDecoder(PreparedStatement ps, boolean cache, ResultSetMetaData rm) throws SQLException {
+		if (!cache || ps==null)
+			return new RowDecoder(rm);
+		RowDecoder decoder=rowDecoders.get(ps);
+		if (decoder==null || !decoder.matches(rm)) {
+			decoder=new RowDecoder(rm);
+			rowDecoders.put(ps, decoder);
+		}
+		return decoder;
+	}
+	
 	private PreparedStatement getPrepraredStatement(Object ticket, String sql, boolean cache) throws SQLException, InterruptedException {
 		if (cache) {
 			PreparedStatement ps=psCache.get(sql);
-			if (ps!=null) return ps;
+			if (ps!=null) {
+				cx.stats.cacheHits.increment();
+				return ps;
+			}
+			cx.stats.cacheMisses.increment();
 			ps = getConnection(ticket).prepareStatement(sql);
 			psCache.put(sql,ps);
 			return ps;
@@ -962,7 +1008,11 @@ public class ConnectionWrapImpl extends ConnectionWrap {
 	private PreparedStatement getPrepraredStatementGenKeys(Object ticket, String sql, boolean cache) throws SQLException, InterruptedException {
 		if (cache) {
 			PreparedStatement ps=psGenCache.get(sql);
-			if (ps!=null) return ps;
+			if (ps!=null) {
+				cx.stats.cacheHits.increment();
+				return ps;
+			}
+			cx.stats.cacheMisses.increment();
 			ps = getConnection(ticket).prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
 			psGenCache.put(sql,ps);
 			return ps;
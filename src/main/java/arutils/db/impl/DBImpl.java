@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,18 +32,26 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import arutils.async.AsyncEngine;
 import arutils.db.ArrayRowHandler;
@@ -52,6 +59,7 @@ import arutils.db.ConnectionWrap;
 import arutils.db.DB;
 import arutils.db.DynamicTableSet;
 import arutils.db.LabelRowHandler;
+import arutils.db.PoolMetrics;
 import arutils.db.ResultSetHandler;
 import arutils.db.StatementBlock;
 import arutils.db.TableName;
@@ -75,19 +83,27 @@ public class DBImpl extends DB {
 	private volatile String version;
 	private volatile String versionComment;
 	private volatile boolean allowOverborrow=true;
+	private volatile int minIdle;
+	private volatile long maxIdleTime;
+	private volatile long keepaliveInterval;
+	private ScheduledFuture<?> maintenance;
 
 //	private LinkedHashMap<String, List<Object[]>> initSqls=new LinkedHashMap<String, List<Object[]>>(); 
-	Set<ConnectionWrapImpl> overborrowSet=new HashSet<>();
+	final AtomicInteger overborrowCount=new AtomicInteger();
 	private Map<Thread,String> threadsMap=new ConcurrentHashMap<>();
 	
 	class CommitContext {
-		int conNum=0;
-		ArrayList<ConnectionWrapImpl> pool=new ArrayList<ConnectionWrapImpl>();
+		final AtomicInteger conNum=new AtomicInteger();
+		final ConnectionPool pool=new ConnectionPool();
+		final AtomicInteger overborrowedInUse=new AtomicInteger();
+		final PoolStats stats=new PoolStats();
+		/**
+		 * guards initBlocks only, borrowing and returning connections goes through the lock free pool
+		 */
 		ReentrantLock lock=new ReentrantLock();
-		Condition cond=lock.newCondition();
 		final boolean autoCommit;
 		NavigableMap<Long,StickyBlock> initBlocks=new TreeMap<Long,StickyBlock>();
-		private long stickyVersion=0;
+		private volatile long stickyVersion=0;
 		
 		public CommitContext(boolean autocommit) {
 			this.autoCommit=autocommit;
@@ -98,113 +114,110 @@ public class DBImpl extends DB {
 		
 		volatile boolean debugEnabled=getDebugEnabled();
 		ConnectionWrapImpl take() throws InterruptedException, SQLException {
-			ConnectionWrapImpl cw=null;
-			boolean stickyOutOfSync=false;
-			lock.lockInterruptibly();
+			if (Thread.interrupted()) throw new InterruptedException();
+			ConnectionWrapImpl cw=pool.poll();
 			String stackTrace = null;
-			try {
-				while (!allowOverborrow && pool.isEmpty()) {
-					if (conNum < maxConnections) {
-						cw= new ConnectionWrapImpl(this, autoCommit);
-						++conNum;
-						break;
-					} else {
-						cond.await(overborrowPenaltyTimeout, TimeUnit.MILLISECONDS);
+			if (cw!=null) {
+				stats.immediate.increment();
+			} else {
+				long start=System.nanoTime();
+				if (!allowOverborrow) {
+					while ((cw=pool.poll())==null) {
+						if (reserve()) {
+							cw=new ConnectionWrapImpl(this, autoCommit);
+							break;
+						}
+						cw=pool.await(TimeUnit.MILLISECONDS.toNanos(overborrowPenaltyTimeout));
+						if (cw!=null) break;
 					}
-				}
-				if (cw==null) {
-					if (pool.isEmpty()) {
-						/*
-						 * something went wrong, even as each thread with an existing connection
-						 * is waiting on async computation, which requires another connection, we still need more
-						 * 
-						 */
-						Thread myThread=Thread.currentThread();
-						if (!threadsMap.containsKey(myThread) && overborrowSet.size() + conNum >= 3*maxConnections) {
-							// add penalty
-							cond.await(overborrowPenaltyTimeout, TimeUnit.MILLISECONDS);
+				} else {
+					/*
+					 * something went wrong, even as each thread with an existing connection
+					 * is waiting on async computation, which requires another connection, we still need more
+					 * 
+					 */
+					Thread myThread=Thread.currentThread();
+					if (!threadsMap.containsKey(myThread) && overborrowCount.get() + conNum.get() >= 3*maxConnections) {
+						// add penalty
+						cw=pool.await(TimeUnit.MILLISECONDS.toNanos(overborrowPenaltyTimeout));
+						
+						stackTrace=genStackTrace();
+						if (cw==null) {
+							stats.stalls.increment();
+							debugEnabled=true;
+							StringBuilder msg=new StringBuilder("Stalled DB pool connection request\nautoCommit="
+									+ autoCommit + "\npool size=" + pool.idle()+ "\nconNum=" + conNum.get()
+									+ "\nmaxConnections=" + maxConnections + "\n#Lockers="+threadsMap.size()
+									+ "\noverborrow size=" + overborrowCount.get() + "\n");
 							
-							stackTrace=genStackTrace();
-							if (pool.isEmpty()) {
-								debugEnabled=true;
-								StringBuilder msg=new StringBuilder("Stalled DB pool connection request\nautoCommit="
-										+ autoCommit + "\npool size=" + pool.size()+ "\nconNum=" + conNum
-										+ "\nmaxConnections=" + maxConnections + "\n#Lockers="+threadsMap.size()
-										+ "\noverborrow size=" + overborrowSet.size() + "\n");
+							msg.append("Stuck at "+stackTrace +"\n");
+							for (Entry<Thread, String> e : threadsMap.entrySet()) {
+								Thread t=e.getKey();
+								String trace=e.getValue();
+								String nowAt=genCurrentStackTrace(t);
+								msg.append("\n--------" + t.getName() + "---------");
+								if (debugEnabled && trace!=null) 
+									msg.append("\n initial locker stack: " + trace);
+								msg.append("\n current locker stack: " + nowAt );
 								
-								msg.append("Stuck at "+stackTrace +"\n");
-								for (Entry<Thread, String> e : threadsMap.entrySet()) {
-									Thread t=e.getKey();
-									String trace=e.getValue();
-									String nowAt=genCurrentStackTrace(t);
-									msg.append("\n--------" + t.getName() + "---------");
-									if (debugEnabled && trace!=null) 
-										msg.append("\n initial locker stack: " + trace);
-									msg.append("\n current locker stack: " + nowAt );
-									
-								}
-								msg.append("\n=======================================================\n");
-								Utils.logerr(msg.toString());
-								cw=new ConnectionWrapImpl(this, autoCommit);
-								overborrowSet.add(cw);
-							} else {
-								cw=pool.remove(pool.size()-1);
-							}
-							threadsMap.put(Thread.currentThread(), genStackTrace());
-						} else {
-							cw=new ConnectionWrapImpl(this, autoCommit);
-							if (conNum >= maxConnections) {
-								overborrowSet.add(cw);
-							} else {
-								conNum++;
 							}
+							msg.append("\n=======================================================\n");
+							Utils.logerr(msg.toString());
+							cw=newOverborrowed();
 						}
+						threadsMap.put(Thread.currentThread(), genStackTrace());
+					} else if (reserve()) {
+						cw=new ConnectionWrapImpl(this, autoCommit);
 					} else {
-						cw=pool.remove(pool.size()-1);
+						cw=newOverborrowed();
 					}
 				}
-				
-				stickyOutOfSync=cw.getStickyVersion()!=stickyVersion;
-				
-				if (debugEnabled) threadsMap.put(Thread.currentThread(), stackTrace==null?genStackTrace():stackTrace);
-
-			} finally {
-				lock.unlock();
+				stats.borrowWaitNanos.record(System.nanoTime()-start);
 			}
-			if (stickyOutOfSync)
+			stats.inUse.increment();
+			cw.borrowedAt=System.nanoTime();
+			
+			if (debugEnabled) threadsMap.put(Thread.currentThread(), stackTrace==null?genStackTrace():stackTrace);
+			
+			if (cw.getStickyVersion()!=stickyVersion)
 				cw.syncUpInitStatements();
 			return cw;
 		}
+		private boolean reserve() {
+			for (int n=conNum.get(); n<maxConnections; n=conNum.get()) 
+				if (conNum.compareAndSet(n, n+1))
+					return true;
+			return false;
+		}
+		private ConnectionWrapImpl newOverborrowed() {
+			ConnectionWrapImpl cw=new ConnectionWrapImpl(this, autoCommit);
+			cw.overborrowed=true;
+			overborrowCount.incrementAndGet();
+			overborrowedInUse.incrementAndGet();
+			stats.overborrowed.increment();
+			return cw;
+		}
 		void release(ConnectionWrapImpl w) throws InterruptedException {
-			lock.lock();
 			if (debugEnabled) threadsMap.remove(Thread.currentThread());
-			try {
-				if (overborrowSet.remove(w)) {
-					w.close();
-					
-				} else {
-					pool.add(w);
-					cond.signalAll();
-				}
-			} finally {
-				lock.unlock();
+			stats.holdNanos.record(System.nanoTime()-w.borrowedAt);
+			stats.inUse.decrement();
+			if (w.overborrowed) {
+				overborrowCount.decrementAndGet();
+				overborrowedInUse.decrementAndGet();
+				w.close();
+			} else {
+				pool.release(w);
 			}
 		}
 		void close() {
-			lock.lock();
-			try {
-				for (ConnectionWrap cw  : pool) 
-					while (true) {
-						try {
-							cw.close();
-							--conNum;
-							break;
-						} catch (InterruptedException e) {}
-					}
-					
-			} finally {
-				lock.unlock();
-			}		
+			for (ConnectionWrap cw  : pool.drain()) 
+				while (true) {
+					try {
+						cw.close();
+						conNum.decrementAndGet();
+						break;
+					} catch (InterruptedException e) {}
+				}
 		}
 		
 		Object addInitStatement(StickyBlock block) {
@@ -221,6 +234,63 @@ public class DBImpl extends DB {
 			return initBlocks.remove(key)!=null;
 		}
 		
+		/**
+		 * Keeps idle connections open, initialized and alive, runs on the maintenance thread only.
+		 */
+		void maintain() throws InterruptedException {
+			int min=minIdle;
+			long maxIdle=maxIdleTime, keepalive=keepaliveInterval;
+			long now=System.currentTimeMillis();
+			int live=0;
+			for (ConnectionWrapImpl cw : pool.idleConnections()) {
+				if (!pool.claim(cw)) continue;
+				boolean keep=true;
+				try {
+					if (cw.isOpen() && keepalive>0 && now-Math.max(cw.idleSince, cw.lastValidated)>=keepalive) {
+						cw.lastValidated=now;
+						cw.validate(VALIDATION_TIMEOUT_SECONDS);
+					}
+					if (live>=min) {
+						keep=cw.isOpen() && (maxIdle<=0 || now-cw.idleSince<maxIdle);
+					} else if (!cw.isOpen()) {
+						cw.open();
+					}
+					if (keep && cw.isOpen()) {
+						if (cw.getStickyVersion()!=stickyVersion) 
+							cw.syncUpInitStatements();
+						++live;
+					}
+				} catch (SQLException e) {
+					Utils.logerr("DB pool maintenance failed: "+e);
+					cw.close();
+				} finally {
+					if (keep) {
+						pool.putBack(cw);
+					} else {
+						pool.discard(cw);
+						cw.close();
+						conNum.decrementAndGet();
+					}
+				}
+			}
+			while (live<min && reserve()) {
+				ConnectionWrapImpl cw=new ConnectionWrapImpl(this, autoCommit);
+				try {
+					cw.open();
+					++live;
+				} catch (SQLException e) {
+					Utils.logerr("DB pool prewarm failed: "+e);
+					break;
+				} finally {
+					pool.putBack(cw);
+				}
+			}
+		}
+		
+		PoolMetrics getMetrics() {
+			return stats.snapshot(pool.idle(), overborrowedInUse.get(), conNum.get(), pool.waiting());
+		}
+		
 		final ReentrantLock getLock() {
 			return lock;
 		}
@@ -232,6 +302,55 @@ public class DBImpl extends DB {
 		}
 	}
 	
+	final static int VALIDATION_TIMEOUT_SECONDS=5;
+	final static long MAINTENANCE_PERIOD_MS=1000;
+	private static ScheduledExecutorService maintenanceExecutor;
+	
+	private static synchronized ScheduledExecutorService getMaintenanceExecutor() {
+		if (maintenanceExecutor==null) 
+			maintenanceExecutor=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t=new Thread(r, "db-pool-maintenance");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return maintenanceExecutor;
+	}
+	
+	final private Runnable maintainTask=new Runnable() {
+		public void run() {
+			try {
+				nonTxCommitContext.maintain();
+				txCommitContext.maintain();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	};
+	
+	/**
+	 * (re)starts the background pool maintenance, if any of the pool options is on
+	 */
+	private synchronized void schedulePoolMaintenance() {
+		if (maintenance!=null) {
+			maintenance.cancel(false);
+			maintenance=null;
+		}
+		if (minIdle>0 || maxIdleTime>0 || keepaliveInterval>0)
+			maintenance=getMaintenanceExecutor().scheduleWithFixedDelay(maintainTask, 0, MAINTENANCE_PERIOD_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * brings idle connections in sync with init statements ahead of the next take()
+	 */
+	private synchronized void wakePoolMaintenance() {
+		if (maintenance!=null)
+			getMaintenanceExecutor().execute(maintainTask);
+	}
+	
 	CommitContext txCommitContext=new CommitContext(false);
 	CommitContext nonTxCommitContext=new CommitContext(true);
 	ReentrantLock getLock(boolean autocommit) {
@@ -331,7 +450,10 @@ public class DBImpl extends DB {
 			default:
 				intrinsics=getMySQLIntristics();
 		}
-
+		minIdle=Integer.parseInt(props.getProperty(POOL_MIN_IDLE, "0"));
+		maxIdleTime=Long.parseLong(props.getProperty(POOL_MAX_IDLE_TIME, "0"));
+		keepaliveInterval=Long.parseLong(props.getProperty(POOL_KEEPALIVE_INTERVAL, "0"));
+		schedulePoolMaintenance();
 	}
 
 	protected DBImpl(DBImpl db) {
@@ -342,6 +464,10 @@ public class DBImpl extends DB {
 		maxCachedPreparedStatements=db.maxCachedPreparedStatements;
 		batchSize=db.batchSize;
 		retryTimeout=db.retryTimeout;
+		minIdle=db.minIdle;
+		maxIdleTime=db.maxIdleTime;
+		keepaliveInterval=db.keepaliveInterval;
+		schedulePoolMaintenance();
 	}
 
 
@@ -378,6 +504,27 @@ public class DBImpl extends DB {
 			nonTxCommitContext.release(cw);
 		}
 	}
+	@Override
+	public Stream<Object[]> stream(final String sql, final Object... args) throws SQLException, InterruptedException {
+		// postgres only fetches through a cursor inside a transaction
+		final CommitContext cx=getDialect()==Dialect.POSTGRESS?txCommitContext:nonTxCommitContext;
+		final ConnectionWrapImpl cw=cx.take();
+		boolean success=false;
+		try {
+			final ConnectionWrapImpl.Cursor c=retry(cw, new StatementBlock<ConnectionWrapImpl.Cursor>(){
+				public ConnectionWrapImpl.Cursor execute(ConnectionWrap wrap) throws SQLException, InterruptedException {
+					return cw.openCursor(sql, args);
+				}});
+			success=true;
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(c, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+				public void run() {
+					c.close();
+				}
+			});
+		} finally {
+			if (!success) cx.release(cw);
+		}
+	}
 	/* (non-Javadoc)
 	 * @see arutils.util.db.impl.DB#selectFirstColumn(java.lang.String, boolean, java.lang.Object)
 	 */
@@ -760,6 +907,12 @@ public class DBImpl extends DB {
 
 	@Override
 	public void close() {
+		synchronized (this) {
+			if (maintenance!=null) {
+				maintenance.cancel(false);
+				maintenance=null;
+			}
+		}
 		txCommitContext.close();
 		nonTxCommitContext.close();
 	}
@@ -773,6 +926,37 @@ public class DBImpl extends DB {
 		this.allowOverborrow=allowOverborrow;
 	}
 
+	@Override
+	public PoolMetrics getPoolMetrics(boolean autoCommit) {
+		return getCommitContext(autoCommit).getMetrics();
+	}
+	@Override
+	public int getMinIdle() {
+		return minIdle;
+	}
+	@Override
+	public void setMinIdle(int minIdle) {
+		this.minIdle=minIdle>0?minIdle:0;
+		schedulePoolMaintenance();
+	}
+	@Override
+	public long getMaxIdleTimeMS() {
+		return maxIdleTime;
+	}
+	@Override
+	public void setMaxIdleTime(TimeUnit tu, long time) {
+		maxIdleTime=TimeUnit.MILLISECONDS.convert(time, tu);
+		schedulePoolMaintenance();
+	}
+	@Override
+	public long getKeepaliveIntervalMS() {
+		return keepaliveInterval;
+	}
+	@Override
+	public void setKeepaliveInterval(TimeUnit tu, long interval) {
+		keepaliveInterval=TimeUnit.MILLISECONDS.convert(interval, tu);
+		schedulePoolMaintenance();
+	}
 	@Override
 	public void setMaxConnections(int max) {
 		maxConnections=max>0?max:1;
@@ -811,6 +995,7 @@ public class DBImpl extends DB {
 			return cx.addInitStatement(block);
 		} finally {
 			cx.getLock().unlock();
+			wakePoolMaintenance();
 		}
 	}
 
@@ -836,6 +1021,7 @@ public class DBImpl extends DB {
 			return cx.removeInitStatementKey(key);
 		} finally {
 			cx.getLock().unlock();
+			wakePoolMaintenance();
 		}
 	}
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.db.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import arutils.async.Histogram;
+import arutils.async.impl.HistogramRecorder;
+import arutils.db.PoolMetrics;
+
+/**
+ * Live, lock free counters of a connection pool. Cheap enough to stay always on.
+ */
+final class PoolStats {
+	/**
+	 * borrows served by an idle connection, the 0 bucket of borrowWaitNanos
+	 */
+	final LongAdder immediate=new LongAdder();
+	final LongAdder overborrowed=new LongAdder();
+	final LongAdder stalls=new LongAdder();
+	final LongAdder opened=new LongAdder();
+	final LongAdder closed=new LongAdder();
+	final LongAdder cacheHits=new LongAdder();
+	final LongAdder cacheMisses=new LongAdder();
+	final LongAdder inUse=new LongAdder();
+	final HistogramRecorder borrowWaitNanos=new HistogramRecorder();
+	final HistogramRecorder holdNanos=new HistogramRecorder();
+
+	PoolMetrics snapshot(int idle, int overborrowedInUse, int connections, int waiting) {
+		return new Snapshot(this, idle, overborrowedInUse, connections, waiting);
+	}
+
+	static class Snapshot implements PoolMetrics {
+		final private long overborrowed;
+		final private long stalls;
+		final private long opened;
+		final private long closed;
+		final private long cacheHits;
+		final private long cacheMisses;
+		final private int inUse;
+		final private int idle;
+		final private int overborrowedInUse;
+		final private int connections;
+		final private int waiting;
+		final private Histogram borrowWaitNanos;
+		final private Histogram holdNanos;
+
+		Snapshot(PoolStats stats, int idle, int overborrowedInUse, int connections, int waiting) {
+			this.overborrowed=stats.overborrowed.sum();
+			this.stalls=stats.stalls.sum();
+			this.opened=stats.opened.sum();
+			this.closed=stats.closed.sum();
+			this.cacheHits=stats.cacheHits.sum();
+			this.cacheMisses=stats.cacheMisses.sum();
+			this.inUse=(int)Math.max(0, stats.inUse.sum());
+			this.idle=idle;
+			this.overborrowedInUse=overborrowedInUse;
+			this.connections=connections;
+			this.waiting=waiting;
+			this.borrowWaitNanos=stats.borrowWaitNanos.snapshot(stats.immediate.sum());
+			this.holdNanos=stats.holdNanos.snapshot();
+		}
+
+		@Override
+		public long getBorrowed() {return borrowWaitNanos.getCount();}
+		@Override
+		public long getOverborrowed() {return overborrowed;}
+		@Override
+		public long getStalls() {return stalls;}
+		@Override
+		public long getOpened() {return opened;}
+		@Override
+		public long getClosed() {return closed;}
+		@Override
+		public long getStatementCacheHits() {return cacheHits;}
+		@Override
+		public long getStatementCacheMisses() {return cacheMisses;}
+		@Override
+		public double getStatementCacheHitRatio() {
+			long total=cacheHits+cacheMisses;
+			return total==0?0:((double)cacheHits)/total;
+		}
+		@Override
+		public int getInUse() {return inUse;}
+		@Override
+		public int getIdle() {return idle;}
+		@Override
+		public int getOverborrowedInUse() {return overborrowedInUse;}
+		@Override
+		public int getConnections() {return connections;}
+		@Override
+		public int getWaiting() {return waiting;}
+		@Override
+		public Histogram getBorrowWaitNanos() {return borrowWaitNanos;}
+		@Override
+		public Histogram getHoldNanos() {return holdNanos;}
+
+		@Override
+		public String toString() {
+			return "{borrowed="+getBorrowed()+", inUse="+inUse+", idle="+idle+", connections="+connections
+				+", overborrowedInUse="+overborrowedInUse+", waiting="+waiting
+				+", overborrowed="+overborrowed+", stalls="+stalls+", opened="+opened+", closed="+closed
+				+", statementCacheHitRatio="+String.format("%.3f", getStatementCacheHitRatio())
+				+", borrowWaitNanos="+borrowWaitNanos+", holdNanos="+holdNanos+"}";
+		}
+	}
+}
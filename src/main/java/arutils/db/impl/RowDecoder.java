@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2009-2015, Alex Raybosh
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version 3
+ * as published by the Free Software Foundation.
+ * http://www.gnu.org/licenses/lgpl-3.0.html  
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * 
+ */
+
+package arutils.db.impl;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+
+/**
+ * Column readers of a result set shape, resolved once from {@link ResultSetMetaData} instead of per cell.
+ * Produces the same values as {@link ConnectionWrapImpl#normalizeGetObject(ResultSetMetaData, ResultSet, int)}.
+ * Object returning getters rely on the JDBC null for SQL NULL and skip wasNull().
+ */
+final class RowDecoder {
+	interface ColumnReader {
+		Object read(ResultSet rs, int pos) throws SQLException;
+	}
+	
+	final private static BigDecimal BIG_LONG_MAX = new BigDecimal(Long.MAX_VALUE);
+	final private static BigDecimal BIG_LONG_MIN = new BigDecimal(Long.MIN_VALUE);
+	
+	final static ColumnReader STRING=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getString(pos);
+		}
+	};
+	final static ColumnReader DATE=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getDate(pos);
+		}
+	};
+	final static ColumnReader TIME=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getTime(pos);
+		}
+	};
+	final static ColumnReader TIMESTAMP=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getTimestamp(pos);
+		}
+	};
+	final static ColumnReader CLOB=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			java.sql.Clob clob = rs.getClob(pos);
+			return clob==null?null:clob.getSubString(1, (int) clob.length());
+		}
+	};
+	final static ColumnReader DOUBLE=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			double dbl = rs.getDouble(pos);
+			return rs.wasNull()?null:dbl;
+		}
+	};
+	final static ColumnReader FLOAT=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			float flt = rs.getFloat(pos);
+			return rs.wasNull()?null:flt;
+		}
+	};
+	final static ColumnReader DECIMAL=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getBigDecimal(pos);
+		}
+	};
+	final static ColumnReader SHORT=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			short asShort = rs.getShort(pos);
+			return rs.wasNull()?null:asShort;
+		}
+	};
+	final static ColumnReader LONG=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			long asLong = rs.getLong(pos);
+			return rs.wasNull()?null:asLong;
+		}
+	};
+	final static ColumnReader NUMERIC=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			Object obj = rs.getObject(pos);
+			if (obj == null || obj instanceof Integer || obj instanceof Long || obj instanceof Short)
+				return obj;
+			BigDecimal big = rs.getBigDecimal(pos);
+			if (rs.wasNull()) 
+				return null;
+			if (big.scale() > 0 || big.compareTo(BIG_LONG_MAX) > 0 || big.compareTo(BIG_LONG_MIN) < 0) 
+				return big;
+			return big.longValue();
+		}
+	};
+	final static ColumnReader OBJECT=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			return rs.getObject(pos);
+		}
+	};
+	final static ColumnReader BIT=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			boolean b = rs.getBoolean(pos);
+			return rs.wasNull()?null:b;
+		}
+	};
+	final static ColumnReader BLOB=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			Blob bl = rs.getBlob(pos);
+			return bl==null?null:bl.getBytes(1, (int) bl.length());
+		}
+	};
+	final static ColumnReader BINARY=new ColumnReader() {
+		public Object read(ResultSet rs, int pos) throws SQLException {
+			Object o = rs.getObject(pos);
+			if (o instanceof Blob) {
+				Blob bl = (Blob) o;
+				return bl.getBytes(1, (int) bl.length());
+			}
+			return o;
+		}
+	};
+	
+	/**
+	 * @return reader of a {@link Types} column type, null if not supported
+	 */
+	static ColumnReader reader(int type) {
+		switch (type) {
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.LONGNVARCHAR:
+				return STRING;
+			case Types.DATE:
+				return DATE;
+			case Types.TIME:
+				return TIME;
+			case Types.TIMESTAMP:
+			case -101:
+				return TIMESTAMP;
+			case Types.CLOB:
+				return CLOB;
+			case Types.DOUBLE:
+				return DOUBLE;
+			case Types.REAL:
+			case Types.FLOAT:
+				return FLOAT;
+			case Types.DECIMAL:
+				return DECIMAL;
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return SHORT;
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return LONG;
+			case Types.NUMERIC:
+				return NUMERIC;
+			case Types.OTHER:
+			case Types.NULL:
+				return OBJECT;
+			case Types.BIT:
+				return BIT;
+			case Types.BLOB:
+				return BLOB;
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+				return BINARY;
+			default:
+				return null;
+		}
+	}
+	
+	final private ColumnReader[] readers;
+	final private String[] labels;
+	final private int[] types;
+	
+	RowDecoder(ResultSetMetaData md) throws SQLException {
+		int n=md.getColumnCount();
+		readers=new ColumnReader[n];
+		labels=new String[n];
+		types=new int[n];
+		for (int i=0;i<n;++i) {
+			final int type=md.getColumnType(i+1);
+			types[i]=type;
+			ColumnReader r=reader(type);
+			if (r==null) {
+				final String name=md.getColumnName(i+1);
+				// fail on the first row, as per cell decoding does
+				r=new ColumnReader() {
+					public Object read(ResultSet rs, int pos) throws SQLException {
+						throw new RuntimeException("Not supported SQL Type " + type	+ " for field " + name);
+					}
+				};
+			}
+			readers[i]=r;
+			labels[i]=md.getColumnLabel(i+1);
+		}
+	}
+	
+	int getColumnCount() {
+		return readers.length;
+	}
+	
+	/**
+	 * @return true, if the result set has the shape the decoder was built for: same column types and labels.
+	 * A cached statement may return another shape, after a schema change behind a select *.
+	 */
+	boolean matches(ResultSetMetaData md) throws SQLException {
+		if (md.getColumnCount()!=readers.length)
+			return false;
+		for (int i=0;i<readers.length;++i) {
+			if (md.getColumnType(i+1)!=types[i] || !Objects.equals(labels[i], md.getColumnLabel(i+1)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param pos - 1 based, as in JDBC
+	 */
+	String getLabel(int pos) {
+		return labels[pos-1];
+	}
+	
+	/**
+	 * @param pos - 1 based, as in JDBC
+	 */
+	Object get(ResultSet rs, int pos) throws SQLException {
+		return readers[pos-1].read(rs, pos);
+	}
+	
+	Object[] decode(ResultSet rs) throws SQLException {
+		ColumnReader[] readers=this.readers;
+		Object[] row=new Object[readers.length];
+		for (int i=0;i<readers.length;++i)
+			row[i]=readers[i].read(rs, i+1);
+		return row;
+	}
+}
@@ -0,0 +1,71 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Deadline;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.ServiceBackend;
+
+/**
+ * Overloaded service: expired and cancelled requests are failed fast, and never reach the backend
+ */
+public class T10 {
+
+	public static void main(String[] args) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicInteger processed=new AtomicInteger();
+		engine.register("Slow", createSlowBackend(processed));
+
+		List<Result<Integer>> results=new ArrayList<>();
+		for (int i=0;i<100;++i) {
+			Result<Integer> r=engine.call(Deadline.after(200, TimeUnit.MILLISECONDS), "Slow", i);
+			if (i%10==5)
+				r.cancel(false);
+			results.add(r);
+		}
+		int ok=0, timedOut=0, cancelled=0;
+		for (Result<Integer> r : results) {
+			try {
+				r.get();
+				++ok;
+			} catch (CancellationException e) {
+				++cancelled;
+			} catch (ExecutionException e) {
+				++timedOut;
+			}
+		}
+		engine.last();
+		engine.completeLast().get();
+		System.out.printf("ok=%d timedOut=%d cancelled=%d processed by backend=%d\n", ok, timedOut, cancelled, processed.get());
+		System.out.println(engine.getMetrics());
+	}
+
+	private static ServiceBackend<Integer> createSlowBackend(final AtomicInteger processed) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				Thread.sleep(50); // <-- simulate a slow DB
+				for (Request<Integer> r : bulk) {
+					processed.incrementAndGet();
+					r.setResult((Integer)r.getArgs()[0]);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 5;}
+			@Override
+			public int getMaxWorkers() {return 1;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+		};
+	}
+
+}
@@ -0,0 +1,76 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+import arutils.async.Workload.Priority;
+
+/**
+ * Per key ordering: a single worker service vs a partitioned one, I/O bound backend.
+ * The calls of a key alternate between workloads of all priorities: the single worker service serves the higher priorities first,
+ * the partitions must keep the submission order.
+ */
+public class T11 {
+	static final int KEYS=64;
+	static final int CALLS=20000;
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<2;++round) {
+			run(0);
+			run(8);
+		}
+	}
+
+	static void run(int partitions) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final ConcurrentHashMap<Integer,Integer> lastSeq=new ConcurrentHashMap<>();
+		final AtomicInteger outOfOrder=new AtomicInteger();
+		engine.register("Keyed", createKeyedBackend(partitions, lastSeq, outOfOrder));
+		Workload[] workloads=new Workload[Priority.values().length];
+		for (Priority p : Priority.values())
+			workloads[p.ordinal()]=engine.createWorkload(p);
+		long t0=System.nanoTime();
+		for (int i=0;i<CALLS;++i)
+			workloads[(i/KEYS)%workloads.length].call("Keyed", i%KEYS, i/KEYS);
+		long n=0;
+		for (Workload w : workloads) {
+			w.last();
+			n+=w.completeLast().get();
+		}
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-22s calls=%d outOfOrder=%d time=%dms throughput=%.0f calls/s\n", partitions==0?"single worker":partitions+" partitions", n, outOfOrder.get(), ns/1000000, n*1e9/ns);
+	}
+
+	private static ServiceBackend<Integer> createKeyedBackend(final int partitions, final ConcurrentHashMap<Integer,Integer> lastSeq, final AtomicInteger outOfOrder) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				Thread.sleep(1); // <-- simulate a DB round trip
+				for (Request<Integer> r : bulk) {
+					Integer key=r.arg(0);
+					Integer seq=r.arg(1);
+					Integer prev=lastSeq.put(key, seq);
+					if (prev!=null && prev>=seq)
+						outOfOrder.incrementAndGet();
+					r.setResult(seq);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 16;}
+			@Override
+			public int getMaxWorkers() {return 1;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+			@Override
+			public int getPartitions() {return partitions;}
+		};
+	}
+
+}
@@ -0,0 +1,68 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.ServiceBackend;
+
+/**
+ * Single-flight: hot keys, with and without coalescing of identical calls
+ */
+public class T12 {
+	static final int KEYS=16;
+	static final int CALLS=20000;
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<2;++round) {
+			run(false);
+			run(true);
+		}
+	}
+
+	static void run(boolean coalesce) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicInteger backendCalls=new AtomicInteger();
+		engine.register("Hot", createBackend(coalesce, backendCalls));
+		long t0=System.nanoTime();
+		List<Result<Integer>> results=new ArrayList<>(CALLS);
+		for (int i=0;i<CALLS;++i)
+			results.add(engine.<Integer>call("Hot", i%KEYS));
+		engine.last();
+		long n=engine.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		int wrong=0;
+		for (Result<Integer> r : results) {
+			Integer key=(Integer)r.getArgs()[0];
+			if (r.get().intValue()!=key*2)
+				++wrong;
+		}
+		System.out.printf("%-14s calls=%d backendCalls=%d wrong=%d time=%dms %s\n", coalesce?"coalesced":"plain", n, backendCalls.get(), wrong, ns/1000000, engine.getMetrics().get("Hot"));
+	}
+
+	private static ServiceBackend<Integer> createBackend(final boolean coalesce, final AtomicInteger backendCalls) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				Thread.sleep(1); // <-- simulate a DB round trip
+				for (Request<Integer> r : bulk) {
+					backendCalls.incrementAndGet();
+					Integer key=r.arg(0);
+					r.setResult(key*2);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 16;}
+			@Override
+			public int getMaxWorkers() {return 2;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+			@Override
+			public Object coalesceKey(Object[] args) {return coalesce?args[0]:null;}
+		};
+	}
+
+}
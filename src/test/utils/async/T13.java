@@ -0,0 +1,92 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+
+/**
+ * One by one submission vs callAll, no-op backend
+ */
+public class T13 {
+	static final int CALLS=1000000;
+
+	public static void main(String[] args) throws Exception {
+		List<Object[]> argsList=new ArrayList<>(CALLS);
+		for (int i=0;i<CALLS;++i)
+			argsList.add(new Object[] {i});
+		for (int round=0;round<3;++round) {
+			for (QueueType qt : QueueType.values()) {
+				run(qt, argsList, false);
+				run(qt, argsList, true);
+			}
+		}
+		checkResults();
+	}
+
+	static void run(QueueType qt, List<Object[]> argsList, boolean bulk) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("Noop", createNoopBackend(qt));
+		Workload w=engine.createWorkload();
+		CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		long t0=System.nanoTime();
+		if (bulk)
+			service.callAll(w, cb, argsList);
+		else {
+			for (Object[] args : argsList)
+				service.callWithCallback(w, cb, args);
+		}
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-10s %-8s calls=%d time=%dms throughput=%.0f calls/s\n", qt, bulk?"callAll":"one by one", n, ns/1000000, n*1e9/ns);
+	}
+
+	static void checkResults() throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("Noop", createNoopBackend(QueueType.LOCKING));
+		List<Object[]> argsList=new ArrayList<>();
+		for (int i=0;i<25000;++i)
+			argsList.add(new Object[] {i});
+		List<Result<Integer>> results=service.callAll(engine.createWorkload(), argsList);
+		int wrong=0;
+		for (int i=0;i<results.size();++i) {
+			if (results.get(i).get().intValue()!=i)
+				++wrong;
+		}
+		System.out.println("results="+results.size()+" wrong="+wrong);
+	}
+
+	private static ServiceBackend<Integer> createNoopBackend(final QueueType qt) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					Integer num=(Integer)r.getArgs()[0];
+					r.setResult(num);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+		};
+	}
+
+}
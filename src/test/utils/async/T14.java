@@ -0,0 +1,69 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+/**
+ * Fixed vs adaptive worker limit, over a backend which thrashes beyond 4 concurrent bulks
+ */
+public class T14 {
+	static final int CALLS=100000;
+	static final int SWEET_SPOT=4;
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<2;++round) {
+			run(false);
+			run(true);
+		}
+	}
+
+	static void run(boolean adaptive) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("DB", createBackend(adaptive));
+		Workload w=engine.createWorkload();
+		long t0=System.nanoTime();
+		for (int i=0;i<CALLS;++i) {
+			service.call(w, i);
+			if (i%20000==0 && i>0)
+				System.out.println("    workerLimit="+service.getMetrics().getWorkerLimit()+" numOfWorkers="+service.getMetrics().getNumOfWorkers());
+		}
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-9s calls=%d time=%dms throughput=%.0f calls/s %s\n", adaptive?"adaptive":"fixed", n, ns/1000000, n*1e9/ns, service.getMetrics());
+	}
+
+	private static ServiceBackend<Integer> createBackend(final boolean adaptive) {
+		final AtomicInteger active=new AtomicInteger();
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				int a=active.incrementAndGet();
+				try {
+					Thread.sleep(1+Math.max(0, a-SWEET_SPOT)); // <-- contended DB gets slower
+				} finally {
+					active.decrementAndGet();
+				}
+				for (Request<Integer> r : bulk)
+					r.setResult((Integer)r.getArgs()[0]);
+			}
+			@Override
+			public int getMaxBulkSize() {return 16;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 32;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public boolean isAdaptiveWorkers() {return adaptive;}
+		};
+	}
+
+}
@@ -0,0 +1,71 @@
+package async;
+
+import java.util.List;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+import arutils.async.Workload.Priority;
+
+/**
+ * Interactive calls behind a LOW priority backfill: latency in the same lane, and in the HIGH lane
+ */
+public class T15 {
+	static final int BACKFILL=30000;
+	static final int INTERACTIVE=100;
+
+	public static void main(String[] args) throws Exception {
+		for (QueueType qt : QueueType.values()) {
+			run(qt, Priority.LOW);
+			run(qt, Priority.HIGH);
+		}
+	}
+
+	static void run(QueueType qt, Priority interactivePriority) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("Lookup", createBackend(qt));
+		Workload backfill=engine.createWorkload(Priority.LOW);
+		Workload interactive=engine.createWorkload(interactivePriority);
+		for (int i=0;i<BACKFILL;++i)
+			service.call(backfill, i);
+		long worst=0, total=0;
+		for (int i=0;i<INTERACTIVE;++i) {
+			long t0=System.nanoTime();
+			Result<Integer> r=service.call(interactive, -i);
+			r.get();
+			long ns=System.nanoTime()-t0;
+			worst=Math.max(worst, ns);
+			total+=ns;
+		}
+		System.out.printf("%-10s interactive=%-6s mean=%.2fms worst=%.2fms backfillLeft=%d\n", qt, interactivePriority, total/1e6/INTERACTIVE, worst/1e6, service.getMetrics().getQueueLength(Priority.LOW));
+		backfill.last();
+		backfill.completeLast().get();
+		System.out.println("    "+service.getMetrics());
+	}
+
+	private static ServiceBackend<Integer> createBackend(final QueueType qt) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				Thread.sleep(1); // <-- simulate a DB round trip
+				for (Request<Integer> r : bulk)
+					r.setResult((Integer)r.getArgs()[0]);
+			}
+			@Override
+			public int getMaxBulkSize() {return 16;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 2;}
+			@Override
+			public int getMaxQueuedRequests() {return 100000;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+		};
+	}
+
+}
@@ -0,0 +1,80 @@
+package async;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.RequestRejectedException;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+/**
+ * A traffic spike over the backend capacity, with and without CoDel shedding: latency of the served calls
+ */
+public class T16 {
+	static final int SPIKE_MILLIS=1000;
+	static final int CALLS_PER_MILLI=40;
+
+	public static void main(String[] args) throws Exception {
+		run(0);
+		run(20);
+	}
+
+	static void run(final long shedTargetMillis) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Long> service=engine.register("Slow", createBackend(shedTargetMillis));
+		Workload w=engine.createWorkload();
+		final long[] latencies=new long[SPIKE_MILLIS*CALLS_PER_MILLI];
+		final AtomicInteger served=new AtomicInteger();
+		final AtomicInteger rejected=new AtomicInteger();
+		CompletionCallback<Long> cb=new CompletionCallback<Long>() {
+			public void completed(Workload workload, Long submitted, Object[] args) {
+				latencies[served.getAndIncrement()]=System.nanoTime()-submitted;
+			}
+			public void errored(Workload workload, Throwable e, Object[] args) {
+				if (e instanceof RequestRejectedException)
+					rejected.incrementAndGet();
+				else
+					e.printStackTrace();
+			}
+		};
+		for (int ms=0;ms<SPIKE_MILLIS;++ms) {
+			for (int i=0;i<CALLS_PER_MILLI;++i)
+				service.callWithCallbackNoLimit(w, cb, System.nanoTime());
+			Thread.sleep(1);
+		}
+		w.last();
+		w.completeLast().get();
+		long[] l=Arrays.copyOf(latencies, served.get());
+		Arrays.sort(l);
+		System.out.printf("shedTarget=%-3dms served=%d rejected=%d p50=%.1fms p99=%.1fms max=%.1fms\n", shedTargetMillis, l.length, rejected.get(),
+				l[l.length/2]/1e6, l[(int)(l.length*0.99)]/1e6, l[l.length-1]/1e6);
+		System.out.println("    "+service.getMetrics());
+	}
+
+	private static ServiceBackend<Long> createBackend(final long shedTargetMillis) {
+		return new ServiceBackend<Long>() {
+			@Override
+			public void process(List<Request<Long>> bulk) throws Exception {
+				Thread.sleep(1); // <-- ~16 calls per milli, less than the spike
+				for (Request<Long> r : bulk)
+					r.setResult((Long)r.getArgs()[0]);
+			}
+			@Override
+			public int getMaxBulkSize() {return 16;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 1;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+			@Override
+			public long getShedTargetMillis() {return shedTargetMillis;}
+		};
+	}
+
+}
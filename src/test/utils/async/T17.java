@@ -0,0 +1,79 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload;
+
+/**
+ * Poison requests in bulks, with and without bisecting the failed bulks
+ */
+public class T17 {
+	static final int CALLS=10000;
+	static final int POISON_EVERY=500;
+
+	public static void main(String[] args) throws Exception {
+		run(0);
+		run(8);
+	}
+
+	static void run(int bisectDepth) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicInteger processCalls=new AtomicInteger();
+		Service<Integer> service=engine.register("Insert", createBackend(bisectDepth, processCalls));
+		Workload w=engine.createWorkload();
+		final AtomicInteger ok=new AtomicInteger(), failed=new AtomicInteger(), wrong=new AtomicInteger();
+		CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {
+				ok.incrementAndGet();
+				if (!ret.equals(args[0]))
+					wrong.incrementAndGet();
+			}
+			public void errored(Workload workload, Throwable e, Object[] args) {
+				failed.incrementAndGet();
+			}
+		};
+		long t0=System.nanoTime();
+		for (int i=0;i<CALLS;++i)
+			service.callWithCallback(w, cb, i);
+		w.last();
+		w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("bisectDepth=%d completed=%d failed=%d wrong=%d processCalls=%d time=%dms\n", bisectDepth, ok.get(), failed.get(), wrong.get(), processCalls.get(), ns/1000000);
+		ServiceMetrics m=service.getMetrics();
+		System.out.println("    "+m);
+		if (m.getCompleted()+m.getErrored()!=m.getSubmitted() || m.getBulkSize().getCount()!=processCalls.get())
+			System.out.println("    WRONG: completed+errored="+(m.getCompleted()+m.getErrored())+" bulkSize samples="+m.getBulkSize().getCount());
+	}
+
+	private static ServiceBackend<Integer> createBackend(final int bisectDepth, final AtomicInteger processCalls) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				processCalls.incrementAndGet();
+				for (Request<Integer> r : bulk) {
+					Integer num=r.arg(0);
+					if (num%POISON_EVERY==0)
+						throw new Exception("Poison row "+num); // <-- the whole transaction rolls back
+				}
+				for (Request<Integer> r : bulk)
+					r.setResult(r.arg(0));
+			}
+			@Override
+			public int getMaxBulkSize() {return 256;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public int getBisectDepth() {return bisectDepth;}
+		};
+	}
+
+}
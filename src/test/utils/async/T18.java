@@ -0,0 +1,93 @@
+package async;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.RingService;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.ServiceBackend.WaitStrategy;
+import arutils.async.Workload;
+
+/**
+ * Fire-and-forget callbacks: LOCK_FREE queue vs RING, throughput and allocated bytes per call, over all threads
+ */
+public class T18 {
+	static final int CALLS=2000000;
+	static final Integer[] ARGS=new Integer[1024];
+	static {
+		for (int i=0;i<ARGS.length;++i)
+			ARGS[i]=i+1000; // <-- out of the Integer cache range, boxed up front
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<3;++round) {
+			run(QueueType.LOCK_FREE, WaitStrategy.PARK);
+			run(QueueType.RING, WaitStrategy.PARK);
+			run(QueueType.RING, WaitStrategy.YIELD);
+			run(QueueType.RING, WaitStrategy.BUSY_SPIN);
+		}
+	}
+
+	static void run(QueueType qt, WaitStrategy ws) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("Noop", createNoopBackend(qt, ws));
+		Workload w=engine.createWorkload();
+		CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		long bytes0=allocatedBytes();
+		long t0=System.nanoTime();
+		if (qt==QueueType.RING) {
+			RingService<Integer> ring=(RingService<Integer>)service;
+			for (int i=0;i<CALLS;++i)
+				ring.publish(w, cb, ARGS[i&1023]);
+		} else {
+			for (int i=0;i<CALLS;++i)
+				service.callWithCallback(w, cb, ARGS[i&1023]);
+		}
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		long bytes=allocatedBytes()-bytes0;
+		System.out.printf("%-10s %-10s calls=%d time=%dms throughput=%.0f calls/s allocated=%.1f bytes/call\n", qt, qt==QueueType.RING?ws:"", n, ns/1000000, n*1e9/ns, (double)bytes/n);
+	}
+
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean mx=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long sum=0;
+		for (long b : mx.getThreadAllocatedBytes(mx.getAllThreadIds()))
+			sum+=Math.max(0, b);
+		return sum;
+	}
+
+	private static ServiceBackend<Integer> createNoopBackend(final QueueType qt, final WaitStrategy ws) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (int i=0;i<bulk.size();++i) {
+					Request<Integer> r=bulk.get(i);
+					r.setResult(r.arg(0));
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 1;}
+			@Override
+			public int getMaxQueuedRequests() {return 4096;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+			@Override
+			public WaitStrategy getWaitStrategy() {return ws;}
+		};
+	}
+
+}
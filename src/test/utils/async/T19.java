@@ -0,0 +1,96 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.ServiceBackend;
+
+/**
+ * A million delayed calls on the timer wheel: scheduling cost, memory, how late they fire; cancelled ones never do
+ */
+public class T19 {
+	static final int TIMERS=1000000;
+	// due once all are scheduled, the scheduling loop would compete for the CPU otherwise
+	static final long MIN_DELAY_MILLIS=3000;
+	static final long MAX_DELAY_MILLIS=13000;
+
+	public static void main(String[] args) throws Exception {
+		cancelled();
+		AsyncEngine engine=AsyncEngine.create();
+		final long[] lateness=new long[TIMERS];
+		final AtomicInteger fired=new AtomicInteger();
+		engine.register("Due", new ServiceBackend<Long>() {
+			@Override
+			public void process(List<Request<Long>> bulk) throws Exception {
+				long now=System.nanoTime();
+				for (Request<Long> r : bulk) {
+					Long due=r.arg(0);
+					if (due!=null)
+						lateness[fired.getAndIncrement()]=now-due;
+					r.setResult(due);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 256;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+		});
+		System.gc();
+		long used0=usedMemory();
+		long t0=System.nanoTime();
+		for (int i=0;i<TIMERS;++i) {
+			long delay=ThreadLocalRandom.current().nextLong(MIN_DELAY_MILLIS, MAX_DELAY_MILLIS);
+			engine.callAfter(delay, TimeUnit.MILLISECONDS, "Due", System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delay));
+		}
+		long scheduleNs=System.nanoTime()-t0;
+		System.gc();
+		System.out.printf("scheduled=%d in %dms, %.0fns per timer, ~%d bytes per pending call\n", TIMERS, scheduleNs/1000000, (double)scheduleNs/TIMERS, (usedMemory()-used0)/TIMERS);
+
+		List<Result<Long>> cancelled=new ArrayList<>();
+		for (int i=0;i<1000;++i)
+			cancelled.add(engine.<Long>callAfter(500, TimeUnit.MILLISECONDS, "Due", (Long)null));
+		for (Result<Long> r : cancelled)
+			r.cancel(false);
+
+		engine.last();
+		long n=engine.completeLast().get();
+		long[] l=Arrays.copyOf(lateness, fired.get());
+		Arrays.sort(l);
+		System.out.printf("completed=%d fired=%d late p50=%.2fms p99=%.2fms max=%.2fms, in %dms\n", n, l.length, l[l.length/2]/1e6, l[(int)(l.length*0.99)]/1e6, l[l.length-1]/1e6, (System.nanoTime()-t0)/1000000);
+		System.out.println("    "+engine.getMetrics().get("Due"));
+	}
+
+	/**
+	 * A cancelled delayed call completes right away, not at its due time
+	 */
+	static void cancelled() throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		engine.register("Never", new ServiceBackend<Long>() {
+			@Override
+			public void process(List<Request<Long>> bulk) throws Exception {
+				throw new IllegalStateException("cancelled call processed");
+			}
+		});
+		Result<Long> r=engine.callAfter(1, TimeUnit.HOURS, "Never");
+		boolean cancelled=r.cancel(false);
+		engine.last();
+		long t0=System.nanoTime();
+		long n=engine.completeLast().get(1, TimeUnit.SECONDS);
+		System.out.printf("cancelled=%b completed=%d in %.2fms\n", cancelled, n, (System.nanoTime()-t0)/1e6);
+	}
+
+	static long usedMemory() {
+		Runtime rt=Runtime.getRuntime();
+		return rt.totalMemory()-rt.freeMemory();
+	}
+
+}
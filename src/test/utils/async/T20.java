@@ -0,0 +1,159 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Pipeline;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload;
+
+/**
+ * Three stages chained by callbacks vs a pipeline, then a pipeline with a slow last stage to check backpressure
+ */
+public class T20 {
+	static final int CALLS=1000000;
+
+	public static void main(String[] args) throws Exception {
+		List<Object[]> argsList=new ArrayList<>(CALLS);
+		for (int i=0;i<CALLS;++i)
+			argsList.add(new Object[] {i});
+		for (int round=0;round<3;++round) {
+			for (QueueType qt : new QueueType[] {QueueType.LOCKING, QueueType.LOCK_FREE}) {
+				runChained(qt, argsList);
+				runPipeline(qt, argsList);
+			}
+		}
+		checkResults();
+		checkBackpressure();
+	}
+
+	static void runChained(QueueType qt, List<Object[]> argsList) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final Service<Integer> s1=engine.register("Inc", createBackend(Op.INC, qt, 0, 10000));
+		final Service<Integer> s2=engine.register("Double", createBackend(Op.DOUBLE, qt, 0, 10000));
+		final Service<Integer> s3=engine.register("Dec", createBackend(Op.DEC, qt, 0, 10000));
+		final AtomicLong sum=new AtomicLong();
+		Workload w=engine.createWorkload();
+		final CompletionCallback<Integer> last=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {sum.addAndGet(ret);}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		final CompletionCallback<Integer> second=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {
+				try {s3.callWithCallback(workload, last, ret);} catch (InterruptedException e) {}
+			}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		CompletionCallback<Integer> first=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {
+				try {s2.callWithCallback(workload, second, ret);} catch (InterruptedException e) {}
+			}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		long t0=System.nanoTime();
+		s1.callAll(w, first, argsList);
+		w.last();
+		w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-10s %-9s calls=%d time=%dms throughput=%.0f calls/s sum=%d\n", qt, "chained", argsList.size(), ns/1000000, argsList.size()*1e9/ns, sum.get());
+	}
+
+	static void runPipeline(QueueType qt, List<Object[]> argsList) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Pipeline<Integer> p=engine.pipeline()
+				.stage("Inc", createBackend(Op.INC, qt, 0, 10000))
+				.stage("Double", createBackend(Op.DOUBLE, qt, 0, 10000))
+				.stage("Dec", createBackend(Op.DEC, qt, 0, 10000))
+				.build();
+		final AtomicLong sum=new AtomicLong();
+		Workload w=engine.createWorkload();
+		CompletionCallback<Integer> last=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {sum.addAndGet(ret);}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		long t0=System.nanoTime();
+		for (Object[] args : argsList)
+			p.callWithCallback(w, last, args);
+		w.last();
+		w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-10s %-9s calls=%d time=%dms throughput=%.0f calls/s sum=%d\n", qt, "pipeline", argsList.size(), ns/1000000, argsList.size()*1e9/ns, sum.get());
+		System.out.println("    "+engine.getMetrics());
+	}
+
+	static void checkResults() throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Pipeline<Integer> p=engine.pipeline()
+				.stage("Inc", createBackend(Op.INC, QueueType.LOCKING, 0, 100))
+				.stage("Double", createBackend(Op.DOUBLE, QueueType.LOCK_FREE, 0, 100))
+				.stage("Dec", createBackend(Op.DEC, QueueType.LOCKING, 0, 100))
+				.build();
+		Workload w=engine.createWorkload();
+		List<Result<Integer>> results=new ArrayList<>();
+		for (int i=0;i<25000;++i)
+			results.add(p.call(w, i));
+		int wrong=0;
+		for (int i=0;i<results.size();++i) {
+			if (results.get(i).get().intValue()!=(i+1)*2-1)
+				++wrong;
+		}
+		System.out.println("stages="+p.getStageNames()+" results="+results.size()+" wrong="+wrong);
+	}
+
+	static void checkBackpressure() throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Pipeline<Integer> p=engine.pipeline()
+				.stage("Inc", createBackend(Op.INC, QueueType.LOCKING, 0, 100))
+				.stage("Slow", createBackend(Op.DEC, QueueType.LOCKING, 10, 100))
+				.build();
+		Workload w=engine.createWorkload();
+		long t0=System.nanoTime();
+		int maxQueued=0;
+		for (int i=0;i<20000;++i) {
+			p.call(w, i);
+			if (i%100==0) {
+				for (ServiceMetrics m : engine.getMetrics().values())
+					maxQueued=Math.max(maxQueued, m.getQueueLength());
+			}
+		}
+		long submitMs=(System.nanoTime()-t0)/1000000;
+		w.last();
+		w.completeLast().get();
+		System.out.println("backpressure: submit time="+submitMs+"ms total="+(System.nanoTime()-t0)/1000000+"ms max stage queue="+maxQueued);
+	}
+
+	enum Op {INC, DOUBLE, DEC}
+
+	private static ServiceBackend<Integer> createBackend(final Op op, final QueueType qt, final long sleepMillis, final int maxQueued) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				if (sleepMillis>0)
+					Thread.sleep(sleepMillis);
+				for (Request<Integer> r : bulk) {
+					int num=(Integer)r.getArgs()[0];
+					r.setResult(op==Op.INC?num+1:op==Op.DOUBLE?num*2:num-1);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return maxQueued;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+		};
+	}
+
+}
@@ -0,0 +1,87 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.async.AsyncEngine;
+import arutils.async.BulkCompletionCallback;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+
+/**
+ * Per request vs per bulk completion callbacks, 256 requests per bulk
+ */
+public class T21 {
+	static final int CALLS=2000000;
+
+	public static void main(String[] args) throws Exception {
+		List<Object[]> argsList=new ArrayList<>(CALLS);
+		for (int i=0;i<CALLS;++i)
+			argsList.add(new Object[] {i});
+		for (int round=0;round<3;++round) {
+			run(argsList, false);
+			run(argsList, true);
+		}
+	}
+
+	static void run(List<Object[]> argsList, boolean bulk) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		Service<Integer> service=engine.register("Noop", createNoopBackend());
+		Workload w=engine.createWorkload();
+		final AtomicLong sum=new AtomicLong();
+		final AtomicLong calls=new AtomicLong();
+		CompletionCallback<Integer> cb;
+		if (bulk) {
+			cb=new BulkCompletionCallback<Integer>() {
+				public void completedAll(Workload workload, List<Request<Integer>> requests) {
+					long s=0;
+					for (Request<Integer> r : requests)
+						s+=r.getResult();
+					sum.addAndGet(s);
+					calls.incrementAndGet();
+				}
+				public void completed(Workload workload, Integer ret, Object[] args) {sum.addAndGet(ret);calls.incrementAndGet();}
+				public void errored(Workload workload, Throwable e, Object[] args) {}
+			};
+		} else {
+			cb=new CompletionCallback<Integer>() {
+				public void completed(Workload workload, Integer ret, Object[] args) {sum.addAndGet(ret);calls.incrementAndGet();}
+				public void errored(Workload workload, Throwable e, Object[] args) {}
+			};
+		}
+		long t0=System.nanoTime();
+		service.callAll(w, cb, argsList);
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-12s calls=%d callbackCalls=%d time=%dms throughput=%.0f calls/s sum=%d\n", bulk?"per bulk":"per request", n, calls.get(), ns/1000000, n*1e9/ns, sum.get());
+	}
+
+	private static ServiceBackend<Integer> createNoopBackend() {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					Integer num=(Integer)r.getArgs()[0];
+					r.setResult(num);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 256;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public QueueType getQueueType() {return QueueType.LOCK_FREE;}
+		};
+	}
+
+}
@@ -0,0 +1,105 @@
+package async;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.LongService;
+import arutils.async.LongServiceBackend;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+/**
+ * Id keyed lookups: generic calls, a Long boxed into Object[], vs LongService calls. Throughput and allocated bytes per call, over all threads
+ */
+public class T22 {
+	static final int CALLS=2000000;
+	static final long BASE_ID=1000000000L; // <-- out of the Long cache range
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<3;++round) {
+			run(false);
+			run(true);
+		}
+	}
+
+	static void run(boolean unboxed) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final long[] sum=new long[1];
+		Workload w=engine.createWorkload();
+		CompletionCallback<Long> cb=new CompletionCallback<Long>() {
+			public void completed(Workload workload, Long ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		long bytes0=allocatedBytes();
+		long t0=System.nanoTime();
+		if (unboxed) {
+			LongService<Long> service=engine.register("Lookup", createLongBackend(sum));
+			for (int i=0;i<CALLS;++i)
+				service.callWithCallback(w, cb, BASE_ID+i);
+		} else {
+			Service<Long> service=engine.register("Lookup", createBackend(sum));
+			for (int i=0;i<CALLS;++i)
+				service.callWithCallback(w, cb, BASE_ID+i);
+		}
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		long bytes=allocatedBytes()-bytes0;
+		System.out.printf("%-12s calls=%d time=%dms throughput=%.0f calls/s allocated=%.1f bytes/call keySum=%d\n", unboxed?"LongService":"Service", n, ns/1000000, n*1e9/ns, (double)bytes/n, sum[0]);
+	}
+
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean mx=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long sum=0;
+		for (long b : mx.getThreadAllocatedBytes(mx.getAllThreadIds()))
+			sum+=Math.max(0, b);
+		return sum;
+	}
+
+	/**
+	 * Results are left null, so that only the keys are boxed
+	 */
+	private static ServiceBackend<Long> createBackend(final long[] sum) {
+		return new ServiceBackend<Long>() {
+			@Override
+			public void process(List<Request<Long>> bulk) throws Exception {
+				for (int i=0;i<bulk.size();++i) {
+					Request<Long> r=bulk.get(i);
+					sum[0]+=(Long)r.getArgs()[0];
+					r.setResult(null);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 256;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public QueueType getQueueType() {return QueueType.LOCK_FREE;}
+		};
+	}
+
+	private static LongServiceBackend<Long> createLongBackend(final long[] sum) {
+		return new LongServiceBackend<Long>() {
+			@Override
+			public void process(long[] keys, int count, Object[] results) throws Exception {
+				for (int i=0;i<count;++i)
+					sum[0]+=keys[i];
+			}
+			@Override
+			public int getMaxBulkSize() {return 256;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public QueueType getQueueType() {return QueueType.LOCK_FREE;}
+		};
+	}
+
+}
@@ -0,0 +1,137 @@
+package async;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceMetrics;
+import arutils.async.Workload;
+
+/**
+ * callNoLimit producers outrunning a slow backend: heap growth with and without spilling to disk, then replay of durable segments
+ */
+public class T23 {
+	static final int CALLS=1000000;
+
+	public static void main(String[] args) throws Exception {
+		run(0);
+		run(20000);
+		durable();
+	}
+
+	static void run(int spillThreshold) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicLong sum=new AtomicLong();
+		Service<Integer> service=engine.register("Slow", createBackend(spillThreshold, null, sum));
+		Workload w=engine.createWorkload();
+		CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {System.out.println(e);}
+		};
+		long maxHeap=0;
+		long t0=System.nanoTime();
+		for (int i=0;i<CALLS;++i) {
+			service.callWithCallbackNoLimit(w, cb, i, "payload-"+i);
+			if (i%50000==0)
+				maxHeap=Math.max(maxHeap, usedHeapAfterGc());
+		}
+		maxHeap=Math.max(maxHeap, usedHeapAfterGc());
+		ServiceMetrics m=service.getMetrics();
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		long expected=(long)CALLS*(CALLS-1)/2;
+		System.out.printf("spillThreshold=%-6d calls=%d time=%dms peak live heap=%dKB spilled=%d argsOk=%b\n", spillThreshold, n, ns/1000000, maxHeap>>10, m.getSpilled(), sum.get()==expected);
+	}
+
+	static void durable() throws Exception {
+		File dir=Files.createTempDirectory("spilltest").toFile();
+		// files of others, left alone
+		File foreign=new File(dir, "notes.seg");
+		Files.write(foreign.toPath(), "not a segment".getBytes());
+		File foreignNumbered=new File(dir, "0000000000000099.seg");
+		Files.write(foreignNumbered.toPath(), new byte[64]);
+		// the first run stops processing after 3000 calls, with replayed calls in its queue, then "crashes"
+		CountDownLatch crashed=new CountDownLatch(1);
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicLong processedSum=new AtomicLong(), processed=new AtomicLong();
+		Service<Integer> service=engine.register("Blocked", createBackend(1000, dir.getPath(), 3000, crashed, processedSum, processed));
+		Workload w=engine.createWorkload();
+		CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		for (int i=0;i<50000;++i)
+			service.callWithCallbackNoLimit(w, cb, i, "payload-"+i);
+		while (processed.get()<2800)
+			Thread.sleep(10);
+		Thread.sleep(200);
+		ServiceMetrics m=service.getMetrics();
+		System.out.println("first run: spilled="+m.getSpilled()+" spillLength="+m.getSpillLength()+" queueLength="+m.getQueueLength()+" processed="+processed.get());
+		// a second process over the same directory: every call the first one did not process is replayed
+		AsyncEngine engine2=AsyncEngine.create();
+		final AtomicLong sum=new AtomicLong(), count=new AtomicLong();
+		engine2.register("Blocked", createBackend(1000, dir.getPath(), Long.MAX_VALUE, null, sum, count));
+		engine2.last();
+		long n=engine2.completeLast().get();
+		long expected=(long)50000*(50000-1)/2-processedSum.get();
+		System.out.println("second run: replayed="+n+" argsOk="+(n==50000-processed.get() && sum.get()==expected)+" segments left="+dir.list().length
+				+" foreign kept="+(foreign.length()==13 && foreignNumbered.length()==64));
+		crashed.countDown();
+	}
+
+	static long usedHeapAfterGc() {
+		System.gc();
+		Runtime rt=Runtime.getRuntime();
+		return rt.totalMemory()-rt.freeMemory();
+	}
+
+	/**
+	 * Sums the first argument, checks the second one
+	 */
+	private static ServiceBackend<Integer> createBackend(final int spillThreshold, final String dir, final AtomicLong sum) {
+		return createBackend(spillThreshold, dir, Long.MAX_VALUE, null, sum, new AtomicLong());
+	}
+
+	/**
+	 * @param budget - calls to process, the bulk that would exceed it blocks until the latch opens
+	 */
+	private static ServiceBackend<Integer> createBackend(final int spillThreshold, final String dir, final long budget, final CountDownLatch latch, final AtomicLong sum, final AtomicLong count) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				if (count.get()+bulk.size()>budget)
+					latch.await();
+				Thread.sleep(1);
+				for (Request<Integer> r : bulk) {
+					int i=(Integer)r.getArgs()[0];
+					if (!("payload-"+i).equals(r.getArgs()[1]))
+						throw new IllegalStateException("Wrong args "+i+" "+r.getArgs()[1]);
+					sum.addAndGet(i);
+					count.incrementAndGet();
+					r.setResult(i);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 200;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 100000;}
+			@Override
+			public int getSpillThreshold() {return spillThreshold;}
+			@Override
+			public String getSpillDirectory() {return dir;}
+			@Override
+			public boolean isSpillDurable() {return dir!=null;}
+		};
+	}
+
+}
@@ -0,0 +1,106 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+
+/**
+ * LOCK_FREE queue: two producers wait for room in a full queue, one of them is interrupted while the queue drains.
+ * The other one has to get the room, a lost wakeup leaves it parked for good.
+ */
+public class T24 {
+	static final int ROUNDS=200;
+
+	public static void main(String[] args) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final Semaphore gate=new Semaphore(0);
+		final Service<Integer> service=engine.register("Gated", createGatedBackend(gate));
+		final Workload w=engine.createWorkload();
+		final AtomicInteger done=new AtomicInteger();
+		final CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {done.incrementAndGet();}
+			public void errored(Workload workload, Throwable e, Object[] args) {done.incrementAndGet();}
+		};
+		int lost=0, interrupted=0;
+		for (int round=0;round<ROUNDS;++round) {
+			gate.drainPermits();
+			int expected=done.get()+2;
+			service.callWithCallback(w, cb, 1); // taken by the worker, which waits on the gate
+			while (service.getMetrics().getQueueLength()>0)
+				Thread.yield();
+			service.callWithCallback(w, cb, 2); // fills the queue
+			final AtomicInteger thrown=new AtomicInteger();
+			Thread p1=producer(service, w, cb, thrown);
+			Thread p2=producer(service, w, cb, thrown);
+			p1.start();
+			awaitParked(p1);
+			p2.start();
+			awaitParked(p2);
+			p1.interrupt();
+			gate.release(3);
+			p2.join(2000);
+			if (p2.isAlive()) {
+				lost++;
+				p2.interrupt();
+				p2.join();
+			} else
+				expected++;
+			p1.join();
+			if (thrown.get()>0)
+				interrupted++;
+			while (done.get()<expected)
+				Thread.sleep(1);
+		}
+		System.out.printf("rounds=%d interrupted=%d lost wakeups=%d%s\n", ROUNDS, interrupted, lost, lost>0?" WRONG":"");
+		System.exit(lost>0?1:0);
+	}
+
+	private static Thread producer(final Service<Integer> service, final Workload w, final CompletionCallback<Integer> cb, final AtomicInteger thrown) {
+		return new Thread(new Runnable() {public void run() {
+			try {
+				service.callWithCallback(w, cb, 3);
+			} catch (InterruptedException e) {
+				thrown.incrementAndGet();
+			}
+		}});
+	}
+
+	private static void awaitParked(Thread t) throws InterruptedException {
+		long deadline=System.nanoTime()+TimeUnit.SECONDS.toNanos(5);
+		while (t.getState()!=Thread.State.WAITING) {
+			if (System.nanoTime()-deadline>0)
+				throw new IllegalStateException(t+" does not block on a full queue");
+			Thread.sleep(1);
+		}
+	}
+
+	private static ServiceBackend<Integer> createGatedBackend(final Semaphore gate) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					gate.acquire();
+					r.setResult((Integer)r.getArgs()[0]);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 1;}
+			@Override
+			public int getMaxWorkers() {return 1;}
+			@Override
+			public int getMaxQueuedRequests() {return 1;}
+			@Override
+			public QueueType getQueueType() {return QueueType.LOCK_FREE;}
+		};
+	}
+
+}
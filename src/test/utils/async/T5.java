@@ -0,0 +1,86 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+
+/**
+ * Throughput of LOCKING vs LOCK_FREE service queues, many producers, no-op backend
+ */
+public class T5 {
+	static final int PRODUCERS=32;
+	static final int CALLS_PER_PRODUCER=200000;
+
+	public static void main(String[] args) throws Exception {
+		for (int round=0;round<3;++round) {
+			run(QueueType.LOCKING);
+			run(QueueType.LOCK_FREE);
+		}
+	}
+
+	static void run(QueueType qt) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final Service<Integer> service=engine.register("Noop", createNoopBackend(qt));
+		final Workload w=engine.createWorkload();
+		final CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+		ExecutorService es=Executors.newFixedThreadPool(PRODUCERS);
+		final CountDownLatch start=new CountDownLatch(1);
+		final CountDownLatch submitted=new CountDownLatch(PRODUCERS);
+		for (int p=0;p<PRODUCERS;++p) {
+			es.submit(new Runnable() {public void run() {
+				try {
+					start.await();
+					for (int i=0;i<CALLS_PER_PRODUCER;++i)
+						service.callWithCallback(w, cb, i);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} finally {
+					submitted.countDown();
+				}
+			}});
+		}
+		long t0=System.nanoTime();
+		start.countDown();
+		submitted.await();
+		w.last();
+		long n=w.completeLast().get();
+		long ns=System.nanoTime()-t0;
+		System.out.printf("%-10s producers=%d calls=%d time=%dms throughput=%.0f calls/s\n", qt, PRODUCERS, n, ns/1000000, n*1e9/ns);
+		es.shutdown();
+	}
+
+	private static ServiceBackend<Integer> createNoopBackend(final QueueType qt) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					Integer num=(Integer)r.getArgs()[0];
+					r.setResult(num);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return 10000;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+		};
+	}
+
+}
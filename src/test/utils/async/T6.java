@@ -0,0 +1,84 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+/**
+ * Throughput of platform vs virtual thread workers, with 1k and 10k concurrent blocking callers of an I/O bound backend.
+ * Virtual workers need JDK 21+, otherwise the engine falls back to platform threads.
+ */
+public class T6 {
+	static final int CALLS_PER_CALLER=20;
+	static final long IO_MS=5;
+
+	public static void main(String[] args) throws Exception {
+		int[] callers={1000, 10000};
+		for (int c : callers) {
+			run(c, false);
+			run(c, true);
+		}
+	}
+
+	static void run(final int callers, boolean virtual) throws Exception {
+		AsyncEngine engine=AsyncEngine.create(new AsyncEngine.Options().setVirtualWorkers(virtual));
+		final Service<Integer> service=engine.register("IO", createIOBackend(callers));
+		final Workload w=engine.createWorkload();
+		ExecutorService es=callers(engine, virtual);
+		final CountDownLatch start=new CountDownLatch(1);
+		final CountDownLatch done=new CountDownLatch(callers);
+		for (int c=0;c<callers;++c) {
+			es.submit(new Runnable() {public void run() {
+				try {
+					start.await();
+					for (int i=0;i<CALLS_PER_CALLER;++i)
+						service.call(w, i).get();
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}});
+		}
+		long t0=System.nanoTime();
+		start.countDown();
+		done.await();
+		long ns=System.nanoTime()-t0;
+		long n=(long)callers*CALLS_PER_CALLER;
+		System.out.printf("%-8s workers, callers=%5d calls=%d time=%dms throughput=%.0f calls/s\n", virtual?"virtual":"platform", callers, n, ns/1000000, n*1e9/ns);
+		es.shutdown();
+	}
+
+	private static ExecutorService callers(AsyncEngine engine, boolean virtual) {
+		if (virtual && engine.getWorkerExecutorService()!=AsyncEngine.getEngineExecutorService())
+			return engine.getWorkerExecutorService();
+		return Executors.newCachedThreadPool();
+	}
+
+	private static ServiceBackend<Integer> createIOBackend(final int maxWorkers) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				Thread.sleep(IO_MS); // <-- simulate JDBC round trip
+				for (Request<Integer> r : bulk)
+					r.setResult((Integer)r.getArgs()[0]);
+			}
+			@Override
+			public int getMaxBulkSize() {return 1;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 1000;}
+			@Override
+			public int getMaxWorkers() {return maxWorkers;}
+			@Override
+			public int getMaxQueuedRequests() {return maxWorkers;}
+		};
+	}
+
+}
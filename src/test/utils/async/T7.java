@@ -0,0 +1,71 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Service;
+import arutils.async.ServiceBackend;
+import arutils.async.ServiceBackend.QueueType;
+import arutils.async.Workload;
+
+/**
+ * Average bulk size under a trickle of requests, with and without linger
+ */
+public class T7 {
+
+	public static void main(String[] args) throws Exception {
+		for (QueueType qt : QueueType.values()) {
+			run(qt, 0);
+			// the ring worker does not linger
+			if (qt!=QueueType.RING)
+				run(qt, TimeUnit.MILLISECONDS.toNanos(5));
+		}
+	}
+
+	static void run(QueueType qt, long lingerNanos) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		final AtomicLong bulks=new AtomicLong();
+		Service<Integer> service=engine.register("Trickle", createBackend(qt, lingerNanos, bulks));
+		Workload w=engine.createWorkload();
+		long t0=System.nanoTime();
+		for (int i=0;i<2000;++i) {
+			service.call(w, i);
+			if (i%10==0) Thread.sleep(1);
+		}
+		w.last();
+		long n=w.completeLast().get();
+		long ms=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-t0);
+		System.out.printf("%-10s linger=%dms calls=%d bulks=%d avg bulk=%.1f time=%dms\n", qt, TimeUnit.NANOSECONDS.toMillis(lingerNanos), n, bulks.get(), n*1.0/bulks.get(), ms);
+		System.out.println("\t"+engine.getMetrics());
+	}
+
+	private static ServiceBackend<Integer> createBackend(final QueueType qt, final long lingerNanos, final AtomicLong bulks) {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				bulks.incrementAndGet();
+				for (Request<Integer> r : bulk)
+					r.setResult((Integer)r.getArgs()[0]);
+				Thread.sleep(1); // <-- simulate a DB round trip
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public int getMaxWorkers() {return 3;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+			@Override
+			public QueueType getQueueType() {return qt;}
+			@Override
+			public long getMaxLingerNanos() {return lingerNanos;}
+			@Override
+			public int getMinBulkSize() {return 32;}
+		};
+	}
+
+}
@@ -0,0 +1,58 @@
+package async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.async.AsyncEngine;
+import arutils.async.Request;
+import arutils.async.Result;
+import arutils.async.ServiceBackend;
+
+/**
+ * Composing results with CompletableFuture, instead of blocking on every get()
+ */
+public class T8 {
+
+	public static void main(String[] args) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		engine.register("MySquare", createMySquareBackend());
+
+		for (int round=0;round<5;++round) {
+			long t0=System.nanoTime();
+			final AtomicLong sum=new AtomicLong();
+			List<CompletableFuture<Integer>> futures=new ArrayList<>();
+			for (int i=0;i<100000;++i) {
+				Result<Integer> r=engine.call("MySquare", i%1000);
+				futures.add(r.toCompletableFuture().thenApply(v -> {sum.addAndGet(v); return v;}));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+			System.out.printf("sum=%d in %dms\n", sum.get(), (System.nanoTime()-t0)/1000000);
+		}
+
+		Result<Integer> r=engine.call("MySquare", 7);
+		System.out.println("7*7 = "+r.get()+", cancel after completion="+r.cancel(false)+", composed="+r.toCompletableFuture().thenApply(v -> v+1).get());
+	}
+
+	private static ServiceBackend<Integer> createMySquareBackend() {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					Integer num=(Integer)r.getArgs()[0];
+					r.setResult(num*num);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+		};
+	}
+
+}
@@ -0,0 +1,65 @@
+package async;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import arutils.async.AsyncEngine;
+import arutils.async.CompletionCallback;
+import arutils.async.Request;
+import arutils.async.ServiceBackend;
+import arutils.async.Workload;
+
+/**
+ * Fan-out of N calls, completion observed without a blocked thread
+ */
+public class T9 {
+
+	public static void main(String[] args) throws Exception {
+		AsyncEngine engine=AsyncEngine.create();
+		engine.register("MySquare", createMySquareBackend());
+		final CompletionCallback<Integer> cb=new CompletionCallback<Integer>() {
+			public void completed(Workload workload, Integer ret, Object[] args) {}
+			public void errored(Workload workload, Throwable e, Object[] args) {}
+		};
+
+		final CountDownLatch allDone=new CountDownLatch(10);
+		for (int f=0;f<10;++f) {
+			final Workload w=engine.createWorkload();
+			final int fanOut=f;
+			for (int i=0;i<10000;++i)
+				w.callWithCallback("MySquare", cb, i);
+			w.onComplete(new Runnable() {public void run() {
+				System.out.println("fan-out "+fanOut+" completed "+w.getNumberOfCompletedCalls()+" calls on "+Thread.currentThread().getName());
+				allDone.countDown();
+			}});
+			w.completeLastAsync().thenAccept(n -> {if (n!=10000) System.out.println("fan-out "+fanOut+" unexpected count "+n);});
+			w.last();
+		}
+		allDone.await();
+		
+		Workload empty=engine.createWorkload();
+		empty.last();
+		System.out.println("empty workload completed: "+empty.completeLast().get());
+	}
+
+	private static ServiceBackend<Integer> createMySquareBackend() {
+		return new ServiceBackend<Integer>() {
+			@Override
+			public void process(List<Request<Integer>> bulk) throws Exception {
+				for (Request<Integer> r : bulk) {
+					Integer num=(Integer)r.getArgs()[0];
+					r.setResult(num*num);
+				}
+			}
+			@Override
+			public int getMaxBulkSize() {return 64;}
+			@Override
+			public long getWorkerReleaseTimeout() {return 100;}
+			@Override
+			public int getMaxWorkers() {return 4;}
+			@Override
+			public int getMaxQueuedRequests() {return 1000;}
+		};
+	}
+
+}
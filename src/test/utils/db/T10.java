@@ -0,0 +1,296 @@
+package db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import arutils.db.DB;
+
+
+/*
+ * Pool prewarm, keepalive and idle eviction, against an in-process fake JDBC driver.
+ */
+public class T10 {
+
+	static final AtomicInteger ids=new AtomicInteger();
+	static final List<FakeConnection> connections=new CopyOnWriteArrayList<>();
+	static volatile Thread requestThread;
+	static final AtomicInteger initOnRequestThread=new AtomicInteger();
+	static final AtomicInteger failedOnRequestThread=new AtomicInteger();
+
+	static class FakeConnection implements InvocationHandler {
+		final int id=ids.incrementAndGet();
+		volatile boolean alive=true;
+		volatile boolean closed;
+		final AtomicInteger inits=new AtomicInteger();
+		final AtomicInteger rollbacks=new AtomicInteger();
+		volatile boolean autoCommit=true;
+		volatile int fetchSize;
+		volatile Generator generator;
+
+		public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+			switch (m.getName()) {
+			case "isValid": return alive && !closed;
+			case "isClosed": return closed;
+			case "close": closed=true; return null;
+			case "createStatement": return statement(null);
+			case "prepareStatement": return statement((String)args[0]);
+			case "setAutoCommit": autoCommit=(Boolean)args[0]; return null;
+			case "getAutoCommit": return autoCommit;
+			case "rollback": rollbacks.incrementAndGet(); return null;
+			case "hashCode": return id;
+			case "equals": return proxy==args[0];
+			case "toString": return "fake-"+id;
+			}
+			return defaultValue(m.getReturnType());
+		}
+
+		PreparedStatement statement(final String prepared) {
+			return (PreparedStatement)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+					switch (m.getName()) {
+					case "executeQuery":
+						check();
+						String sql=args==null?prepared:(String)args[0];
+						if (sql.startsWith("select n from gen(")) {
+							generator=new Generator(Long.parseLong(sql.substring(18, sql.indexOf(')'))), fetchSize==Integer.MIN_VALUE);
+							return generator.resultSet();
+						}
+						if (sql.startsWith("select * from wide(")) 
+							return wide(Integer.parseInt(sql.substring(19, sql.indexOf(')'))));
+						return singleRow(id);
+					case "cancel":
+						if (generator!=null) generator.cancelled=true;
+						return null;
+					case "setFetchSize":
+						fetchSize=(Integer)args[0];
+						return null;
+					case "executeUpdate":
+					case "execute":
+						check();
+						if (args!=null && String.valueOf(args[0]).startsWith("set fake_init")) {
+							inits.incrementAndGet();
+							if (Thread.currentThread()==requestThread) initOnRequestThread.incrementAndGet();
+						}
+						return m.getReturnType()==boolean.class?(Object)false:(Object)0;
+					}
+					return defaultValue(m.getReturnType());
+				}
+			});
+		}
+
+		void check() throws SQLException {
+			if (!alive || closed) {
+				if (Thread.currentThread()==requestThread) failedOnRequestThread.incrementAndGet();
+				throw new SQLException("Communications link failure");
+			}
+		}
+	}
+
+	/**
+	 * result set of 1..n BIGINTs, produced on demand
+	 */
+	static class Generator {
+		final long n;
+		final AtomicLong produced=new AtomicLong();
+		volatile boolean closed;
+		volatile boolean cancelled;
+		final boolean streaming;
+
+		Generator(long n, boolean streaming) {
+			this.n=n;
+			this.streaming=streaming;
+		}
+
+		boolean next() {
+			if (cancelled || produced.get()>=n) return false;
+			produced.incrementAndGet();
+			return true;
+		}
+
+		ResultSet resultSet() {
+			final ResultSetMetaData md=(ResultSetMetaData)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+					switch (m.getName()) {
+					case "getColumnCount": return 1;
+					case "getColumnType": return Types.BIGINT;
+					}
+					return defaultValue(m.getReturnType());
+				}
+			});
+			return (ResultSet)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+					switch (m.getName()) {
+					case "next": 
+						return !closed && next();
+					case "getLong": return produced.get();
+					case "getMetaData": return md;
+					case "close": 
+						// as Connector/J 5.1 streaming results do, read through the rest
+						if (streaming) while (next());
+						closed=true; 
+						return null;
+					}
+					return defaultValue(m.getReturnType());
+				}
+			});
+		}
+	}
+
+	static final int[] WIDE_TYPES={Types.BIGINT, Types.VARCHAR, Types.DOUBLE, Types.TIMESTAMP, Types.DECIMAL, Types.INTEGER, Types.VARCHAR, Types.SMALLINT};
+	static final int WIDE_COLUMNS=40;
+	/**
+	 * calls made to wide() result sets and their metadata
+	 */
+	static long wideCalls;
+	/**
+	 * rotates the column types of wide() result sets, a schema change behind the same statement
+	 */
+	static int wideShift;
+
+	/**
+	 * rows x 40 columns of mixed types, every 7th column NULL on odd rows
+	 */
+	static ResultSet wide(final int rows) {
+		final ResultSetMetaData md=(ResultSetMetaData)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				++wideCalls;
+				switch (m.getName()) {
+				case "getColumnCount": return WIDE_COLUMNS;
+				case "getColumnType": return WIDE_TYPES[((Integer)args[0]-1+wideShift)%WIDE_TYPES.length];
+				case "getColumnLabel": 
+				case "getColumnName": 
+					return "c"+args[0];
+				}
+				return defaultValue(m.getReturnType());
+			}
+		});
+		final java.sql.Timestamp ts=new java.sql.Timestamp(0);
+		final java.math.BigDecimal bd=new java.math.BigDecimal("12.34");
+		return (ResultSet)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+			int row;
+			boolean wasNull;
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				++wideCalls;
+				String name=m.getName();
+				if (name.equals("next")) return ++row<=rows;
+				if (name.equals("wasNull")) return wasNull;
+				if (name.equals("getMetaData")) return md;
+				if (!name.startsWith("get")) return defaultValue(m.getReturnType());
+				int col=(Integer)args[0];
+				wasNull=col%7==0 && (row&1)==1;
+				switch (name) {
+				case "getLong": return wasNull?0L:(long)row*col;
+				case "getShort": return wasNull?(short)0:(short)col;
+				case "getDouble": return wasNull?0d:row*0.5;
+				case "getString": return wasNull?null:"v"+col;
+				case "getTimestamp": return wasNull?null:ts;
+				case "getBigDecimal": return wasNull?null:bd;
+				}
+				return defaultValue(m.getReturnType());
+			}
+		});
+	}
+
+	static ResultSet singleRow(final Object value) {
+		return (ResultSet)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+			boolean read;
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				switch (m.getName()) {
+				case "next": 
+					boolean ret=!read;
+					read=true;
+					return ret;
+				case "getObject": return value;
+				}
+				return defaultValue(m.getReturnType());
+			}
+		});
+	}
+
+	static Object defaultValue(Class<?> c) {
+		if (c==boolean.class) return false;
+		if (c==int.class) return 0;
+		if (c==long.class) return 0L;
+		return null;
+	}
+
+	static class FakeDriver implements Driver {
+		public Connection connect(String url, Properties info) throws SQLException {
+			if (!acceptsURL(url)) return null;
+			FakeConnection fc=new FakeConnection();
+			connections.add(fc);
+			return (Connection)Proxy.newProxyInstance(T10.class.getClassLoader(), new Class<?>[] {Connection.class}, fc);
+		}
+		public boolean acceptsURL(String url) {return url.startsWith("jdbc:postgresql://fake/") || url.startsWith("jdbc:mysql://fake/");}
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {return new DriverPropertyInfo[0];}
+		public int getMajorVersion() {return 1;}
+		public int getMinorVersion() {return 0;}
+		public boolean jdbcCompliant() {return false;}
+		public Logger getParentLogger() {return null;}
+	}
+
+	static int open() {
+		int n=0;
+		for (FakeConnection fc : connections) if (!fc.closed) ++n;
+		return n;
+	}
+
+	static void expect(String what, boolean ok) {
+		System.out.println((ok?"ok      ":"FAILED  ")+what);
+		if (!ok) System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		DriverManager.registerDriver(new FakeDriver());
+		requestThread=Thread.currentThread();
+		Properties props=new Properties();
+		props.setProperty(DB.POOL_MIN_IDLE, "3");
+		props.setProperty(DB.POOL_KEEPALIVE_INTERVAL, "200");
+		DB db=DB.create("jdbc:postgresql://fake/test", "test", "", props);
+
+		Thread.sleep(500);
+		expect("prewarmed 3 connections per pool before any request, open="+open(), connections.size()==6 && open()==6);
+
+		db.addInitSqlWithArgs(true, "set fake_init=1");
+		Thread.sleep(500);
+		int inited=0;
+		for (FakeConnection fc : connections) if (fc.inits.get()>0) ++inited;
+		expect("init statement applied in background to idle connections, inited="+inited, inited==3);
+
+		for (int i=0;i<1000;++i) db.update("update t set x=1");
+		expect("requests reused prewarmed connections, opened="+connections.size(), connections.size()==6);
+		expect("no init statements on the request path", initOnRequestThread.get()==0);
+
+		for (FakeConnection fc : connections) fc.alive=false;
+		Thread.sleep(1500);
+		expect("dead connections replaced in background, open="+open(), open()==6 && connections.size()==12);
+		for (int i=0;i<1000;++i) db.update("update t set x=1");
+		expect("no failures on the request path after a blip", failedOnRequestThread.get()==0);
+		expect("no init statements on the request path after a blip", initOnRequestThread.get()==0);
+
+		db.setMinIdle(1);
+		db.setMaxIdleTime(TimeUnit.MILLISECONDS, 300);
+		Thread.sleep(1500);
+		expect("idle connections above min idle evicted, open="+open(), open()==2);
+
+		db.close();
+		expect("close closes idle connections, open="+open(), open()==0);
+	}
+}
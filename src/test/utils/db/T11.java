@@ -0,0 +1,109 @@
+package db;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+
+import arutils.db.ConnectionWrap;
+import arutils.db.DB;
+import arutils.db.PoolMetrics;
+import arutils.db.StatementBlock;
+
+
+/*
+ * Pool metrics, against the fake JDBC driver of T10.
+ */
+public class T11 {
+
+	static final int THREADS=16;
+	static final int CALLS=200;
+
+	public static void main(String[] args) throws Exception {
+		DriverManager.registerDriver(new T10.FakeDriver());
+		final DB db=DB.create("jdbc:postgresql://fake/test", "test", "");
+		db.setMaxConnections(4);
+		db.allowOverborrow(false);
+
+		final StatementBlock<Void> query=new StatementBlock<Void>() {
+			public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+				cw.update("update t set x=?", true, 1);
+				Thread.sleep(1);
+				return null;
+			}
+		};
+		run(THREADS, new Runnable() {
+			public void run() {
+				try {
+					for (int i=0;i<CALLS;++i) db.autocommit(query);
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+		});
+		PoolMetrics m=db.getPoolMetrics(true);
+		System.out.println("autocommit "+m);
+		T10.expect("all borrows counted", m.getBorrowed()==THREADS*CALLS);
+		T10.expect("borrows waited for connections", m.getBorrowWaitNanos().getValueAtPercentile(99)>500000);
+		T10.expect("hold time covers the query", m.getHoldNanos().getMin()>=1000000);
+		T10.expect("4 connections opened", m.getOpened()==4 && m.getConnections()==4 && m.getIdle()==4);
+		T10.expect("nothing in use or waiting", m.getInUse()==0 && m.getWaiting()==0);
+		T10.expect("statement cache hit ratio", m.getStatementCacheMisses()==4 && m.getStatementCacheHitRatio()>0.99);
+		T10.expect("transactional pool untouched", db.getPoolMetrics(false).getBorrowed()==0);
+
+		db.allowOverborrow(true);
+		final CountDownLatch holding=new CountDownLatch(8);
+		final CountDownLatch go=new CountDownLatch(1);
+		Thread[] ts=start(8, new Runnable() {
+			public void run() {
+				try {
+					db.autocommit(new StatementBlock<Void>() {
+						public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+							cw.update("update t set x=?", true, 1);
+							holding.countDown();
+							go.await();
+							return null;
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+		});
+		holding.await();
+		m=db.getPoolMetrics(true);
+		System.out.println("overborrowed "+m);
+		T10.expect("8 in use, 4 overborrowed", m.getInUse()==8 && m.getOverborrowedInUse()==4 && m.getOverborrowed()==4 && m.getIdle()==0);
+		go.countDown();
+		for (Thread t : ts) t.join();
+		m=db.getPoolMetrics(true);
+		T10.expect("overborrowed connections closed on return", m.getOverborrowedInUse()==0 && m.getClosed()==4 && m.getOpened()==8);
+
+		// the second borrow takes the connection through the affinity slot, it stays on the idle stack
+		db.autocommit(query);
+		db.autocommit(new StatementBlock<Void>() {
+			public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+				PoolMetrics m=db.getPoolMetrics(true);
+				System.out.println("affinity "+m);
+				T10.expect("affinity borrow not idle", m.getInUse()==1 && m.getIdle()==3 && m.getConnections()==4);
+				return null;
+			}
+		});
+		T10.expect("all idle again", db.getPoolMetrics(true).getIdle()==4);
+		db.close();
+	}
+
+	static Thread[] start(int n, Runnable r) {
+		Thread[] ts=new Thread[n];
+		for (int i=0;i<n;++i) {
+			ts[i]=new Thread(r);
+			ts[i].start();
+		}
+		return ts;
+	}
+
+	static void run(int n, Runnable r) throws InterruptedException {
+		for (Thread t : start(n, r)) t.join();
+	}
+}
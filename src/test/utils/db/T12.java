@@ -0,0 +1,61 @@
+package db;
+
+import java.sql.DriverManager;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import arutils.db.DB;
+import arutils.db.PoolMetrics;
+
+
+/*
+ * DB.stream against the fake JDBC driver of T10: rows are produced by the driver only as they are read,
+ * fetch size and transaction are set per dialect, the connection goes back to the pool on close.
+ */
+public class T12 {
+
+	public static void main(String[] args) throws Exception {
+		DriverManager.registerDriver(new T10.FakeDriver());
+		run("jdbc:postgresql://fake/test", false, 1000);
+		run("jdbc:mysql://fake/test", true, Integer.MIN_VALUE);
+	}
+
+	static void run(String url, boolean autoCommit, int fetchSize) throws Exception {
+		System.out.println(url);
+		DB db=DB.create(url, "test", "");
+		long rows=5000000;
+		long sum=0;
+		long heap=0;
+		try (Stream<Object[]> s=db.stream("select n from gen("+rows+")")) {
+			Iterator<Object[]> it=s.iterator();
+			for (long i=0;it.hasNext();++i) {
+				sum+=(Long)it.next()[0];
+				if (i==rows/2) {
+					System.gc();
+					heap=Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
+					T10.expect("in use while streaming", db.getPoolMetrics(autoCommit).getInUse()==1);
+				}
+			}
+		}
+		T10.FakeConnection fc=T10.connections.get(T10.connections.size()-1);
+		T10.expect("streamed "+rows+" rows, live heap half way "+(heap>>20)+"MB", sum==rows*(rows+1)/2 && heap<(64<<20));
+		T10.expect("fetch size "+fc.fetchSize, fc.fetchSize==fetchSize);
+		T10.expect(autoCommit?"autocommit connection":"transactional connection, rolled back", fc.autoCommit==autoCommit && (autoCommit || fc.rollbacks.get()==1));
+		PoolMetrics m=db.getPoolMetrics(autoCommit);
+		T10.expect("connection returned when exhausted", m.getInUse()==0 && m.getIdle()==1);
+
+		long count;
+		try (Stream<Object[]> s=db.stream("select n from gen("+rows+")")) {
+			count=s.limit(10).count();
+		}
+		fc=T10.connections.get(T10.connections.size()-1);
+		T10.Generator g=fc.generator;
+		m=db.getPoolMetrics(autoCommit);
+		T10.expect("early close stops reading, produced="+g.produced.get(), count==10 && g.produced.get()<=11);
+		T10.expect("connection returned on early close", m.getInUse()==0 && m.getIdle()==1);
+		T10.expect("result set closed, connection kept", g.closed && !fc.closed);
+		if (autoCommit) 
+			T10.expect("mysql query cancelled rather than drained", g.cancelled);
+		db.close();
+	}
+}
@@ -0,0 +1,139 @@
+package db;
+
+import java.math.BigDecimal;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import arutils.db.ArrayRowHandler;
+import arutils.db.DB;
+import arutils.db.ResultSetHandler;
+
+
+/*
+ * Row decoding benchmark against the wide result set of the T10 fake driver: select() with the per result set 
+ * decoder vs the former per cell decoding, reproduced here through a ResultSetHandler.
+ * The fake result set is a dynamic proxy, so every driver call costs about the same, which makes
+ * calls per cell the portable number; the times include list building and the proxy overhead.
+ */
+public class T13 {
+
+	static final int ROWS=2000;
+	static final int ROUNDS=30;
+
+	public static void main(String[] args) throws Exception {
+		DriverManager.registerDriver(new T10.FakeDriver());
+		final DB db=DB.create("jdbc:mysql://fake/test", "test", "");
+		final String sql="select * from wide("+ROWS+")";
+		long cells=(long)ROWS*T10.WIDE_COLUMNS;
+
+		List<Object[]> expected=legacy(db, sql);
+		List<Object[]> actual=db.select(sql, true);
+		T10.expect("same rows as per cell decoding", expected.size()==actual.size() && deepEquals(expected, actual));
+		final List<Object[]> handled=new ArrayList<>();
+		db.select(sql, true, new ArrayRowHandler() {
+			public void reset() {handled.clear();}
+			public void onRow(ResultSetMetaData md, Object[] row) {handled.add(row);}
+		});
+		T10.expect("same rows through ArrayRowHandler", deepEquals(expected, handled));
+		T10.wideShift=1;
+		T10.expect("cached decoder rebuilt when the column types change", deepEquals(legacy(db, sql), db.select(sql, true)));
+		T10.wideShift=0;
+
+		for (int warmup=0;warmup<3;++warmup) {
+			bench(db, sql, true, ROUNDS);
+			bench(db, sql, false, ROUNDS);
+		}
+		for (int i=0;i<3;++i) {
+			long[] before=bench(db, sql, false, ROUNDS);
+			long[] after=bench(db, sql, true, ROUNDS);
+			System.out.printf("per cell:   %.1f ns/cell %.2f driver calls/cell%n", ((double)before[0])/cells/ROUNDS, ((double)before[1])/cells/ROUNDS);
+			System.out.printf("row decoder: %.1f ns/cell %.2f driver calls/cell%n", ((double)after[0])/cells/ROUNDS, ((double)after[1])/cells/ROUNDS);
+		}
+		db.close();
+	}
+
+	static long[] bench(DB db, String sql, boolean decoder, int rounds) throws Exception {
+		long calls=T10.wideCalls;
+		long start=System.nanoTime();
+		for (int i=0;i<rounds;++i) {
+			List<Object[]> rows=decoder?db.select(sql, true):legacy(db, sql);
+			if (rows.size()!=ROWS) throw new RuntimeException("rows "+rows.size());
+		}
+		return new long[] {System.nanoTime()-start, T10.wideCalls-calls};
+	}
+
+	static boolean deepEquals(List<Object[]> a, List<Object[]> b) {
+		if (a.size()!=b.size()) return false;
+		for (int i=0;i<a.size();++i) 
+			if (!Arrays.deepEquals(a.get(i), b.get(i))) return false;
+		return true;
+	}
+
+	static List<Object[]> legacy(DB db, String sql) throws Exception {
+		final List<Object[]> result=new ArrayList<>();
+		db.select(sql, true, new ResultSetHandler() {
+			public void reset() {result.clear();}
+			public void onRow(ResultSet rs) throws SQLException {
+				ResultSetMetaData rm=rs.getMetaData();
+				int numberOfColumns=rm.getColumnCount();
+				Object[] row = new Object[numberOfColumns];
+				for (int i = 0; i < numberOfColumns; i++)
+					row[i] = legacyNormalize(rm, rs, i + 1);
+				result.add(row);
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * the per cell decoding select() used to do, for the types of the wide result set
+	 */
+	static Object legacyNormalize(ResultSetMetaData md, ResultSet rs, int pos) throws SQLException {
+		int type = md.getColumnType(pos);
+		switch (type) {
+		case Types.CHAR:
+		case Types.VARCHAR:
+			String s = rs.getString(pos);
+			if (rs.wasNull())
+				return null;
+			else
+				return s;
+		case Types.TIMESTAMP:
+			java.sql.Timestamp timestamp = rs.getTimestamp(pos);
+			if (rs.wasNull())
+				return null;
+			else
+				return timestamp;
+		case Types.DOUBLE:
+			double dbl = rs.getDouble(pos);
+			if (rs.wasNull())
+				return null;
+			return dbl;
+		case Types.DECIMAL:
+			BigDecimal bd = rs.getBigDecimal(pos);
+			if (rs.wasNull())
+				return null;
+			return bd;
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			short asShort = rs.getShort(pos);
+			if (rs.wasNull())
+				return null;
+			return asShort;
+		case Types.INTEGER:
+		case Types.BIGINT:
+			long asLong = rs.getLong(pos);
+			if (rs.wasNull())
+				return null;
+			return asLong;
+		default:
+			throw new RuntimeException("Not supported SQL Type " + type);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package db;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import arutils.db.ConnectionWrap;
+import arutils.db.DB;
+import arutils.db.StatementBlock;
+
+
+/*
+ * Connection pool contention benchmark. The blocks never touch JDBC, so connections are never
+ * actually opened and no database is needed: what is measured is the cost of borrowing
+ * and returning a connection with many threads hammering the same DB.
+ */
+public class T9 {
+
+	static final int THREADS=200;
+	static final long DURATION_MS=3000;
+
+	public static void main(String[] args) throws Exception {
+		run("no waiting, 256 connections", 256, true, 0);
+		run("short hold, 30 connections", 30, false, 20);
+		run("short hold, 8 connections", 8, false, 20);
+	}
+
+	static void run(String label, int maxConnections, boolean overborrow, final int holdMicros) throws Exception {
+		final DB db=DB.create("jdbc:mysql://localhost:3306/?useSSL=false", "test", "");
+		db.setMaxConnections(maxConnections);
+		db.allowOverborrow(overborrow);
+		final Map<ConnectionWrap,AtomicInteger> owners=new ConcurrentHashMap<>();
+		final AtomicBoolean shared=new AtomicBoolean();
+		final AtomicBoolean stop=new AtomicBoolean();
+		final AtomicLong ops=new AtomicLong();
+		final StatementBlock<Void> block=new StatementBlock<Void>() {
+			public Void execute(ConnectionWrap cw) throws SQLException, InterruptedException {
+				AtomicInteger o=owners.get(cw);
+				if (o==null) {
+					owners.putIfAbsent(cw, new AtomicInteger());
+					o=owners.get(cw);
+				}
+				if (o.incrementAndGet()!=1) shared.set(true);
+				if (holdMicros>0) {
+					long end=System.nanoTime()+holdMicros*1000L;
+					while (System.nanoTime()<end) Thread.yield();
+				}
+				o.decrementAndGet();
+				return null;
+			}
+		};
+		final CountDownLatch done=new CountDownLatch(THREADS);
+		for (int i=0;i<THREADS;++i) {
+			Thread t=new Thread() {
+				public void run() {
+					try {
+						long n=0;
+						while (!stop.get()) {
+							db.autocommit(block);
+							++n;
+						}
+						ops.addAndGet(n);
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		long start=System.nanoTime();
+		Thread.sleep(DURATION_MS);
+		stop.set(true);
+		done.await();
+		long ns=System.nanoTime()-start;
+		db.close();
+		System.out.printf("%-30s threads=%d borrows/s=%,d connections=%d shared=%s%n", label, THREADS, ops.get()*1000000000L/ns, owners.size(), shared.get());
+		if (shared.get() || (!overborrow && owners.size()>maxConnections)) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}